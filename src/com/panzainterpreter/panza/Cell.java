@@ -0,0 +1,14 @@
+package com.panzainterpreter.panza;
+
+/**
+ * A local variable that closures capture and that can change after they capture it. The frame the variable is
+ * declared in and every closure capturing it hold the same Cell, so they all see assignments made through any of them.
+ * Variables that never change once captured are copied into closures instead.
+ */
+public class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,55 @@
+package com.panzainterpreter.panza;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compiled sequence of bytecode. Holds the instruction bytes, a parallel line table used for error reporting and
+ * the constant pool the instructions refer to by index.
+ */
+public class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+
+    Object[] constants = new Object[16];
+    int constantCount = 0;
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    /**
+     * Appends a byte to the chunk, recording the source line it came from.
+     * @param b
+     * @param line
+     */
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte)b;
+        lines[count] = line;
+        count++;
+    }
+
+    /**
+     * Adds a value to the constant pool and returns its index. Numbers and strings are shared, so a literal that
+     * appears many times in a function only takes up a single slot.
+     * @param value
+     * @return
+     */
+    int addConstant(Object value) {
+        boolean shareable = value instanceof Double || value instanceof String;
+        if (shareable) {
+            Integer index = constantIndexes.get(value);
+            if (index != null) return index;
+        }
+
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        if (shareable) constantIndexes.put(value, constantCount);
+        return constantCount++;
+    }
+}
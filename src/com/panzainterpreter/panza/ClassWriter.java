@@ -0,0 +1,372 @@
+package com.panzainterpreter.panza;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a JVM class file, just enough of the format for the JitCompiler: a constant pool, methods with code, and
+ * branches to labels. Code is written for class file version 49, which the JVM verifies by inferring types, so no
+ * stack map frames have to be worked out. The maximum stack depth is tracked as instructions are added, which works
+ * because the code given to it always has the same stack depth on every path to a label.
+ */
+public class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // The opcodes the JitCompiler uses.
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int WIDE = 0xc4;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /**
+     * Thrown when the class would break one of the class file format's limits.
+     */
+    static class TooLarge extends RuntimeException {
+        TooLarge(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A position in a method's code that branches can jump to before it is known.
+     */
+    static class Label {
+        private int position = -1;
+        private final List<Integer> branches = new ArrayList<>();
+    }
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int methodCount = 0;
+
+    private final String name;
+    private final String superName;
+
+    /**
+     * @param name The internal name of the class, with slashes between the parts of the package
+     * @param superName The internal name of its superclass
+     */
+    ClassWriter(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    private int constant(String key, int tag, byte[] body) {
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+
+        if (poolCount > 0xffff) throw new TooLarge("Too many constants.");
+        try {
+            poolOut.writeByte(tag);
+            poolOut.write(body);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount++;
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    int utf8(String text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeUTF(text);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return constant("U" + text, CONSTANT_UTF8, bytes.toByteArray());
+    }
+
+    int integer(int value) {
+        return constant("I" + value, CONSTANT_INTEGER, new byte[] {
+                (byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value });
+    }
+
+    int classRef(String className) {
+        return constant("C" + className, CONSTANT_CLASS, u2(utf8(className)));
+    }
+
+    private int nameAndType(String memberName, String descriptor) {
+        int nameIndex = utf8(memberName);
+        int typeIndex = utf8(descriptor);
+        return constant("N" + memberName + ":" + descriptor, CONSTANT_NAME_AND_TYPE, u2u2(nameIndex, typeIndex));
+    }
+
+    int methodRef(String owner, String methodName, String descriptor) {
+        int classIndex = classRef(owner);
+        int typeIndex = nameAndType(methodName, descriptor);
+        return constant("M" + owner + "." + methodName + descriptor, CONSTANT_METHODREF, u2u2(classIndex, typeIndex));
+    }
+
+    int fieldRef(String owner, String fieldName, String descriptor) {
+        int classIndex = classRef(owner);
+        int typeIndex = nameAndType(fieldName, descriptor);
+        return constant("F" + owner + "." + fieldName + descriptor, CONSTANT_FIELDREF, u2u2(classIndex, typeIndex));
+    }
+
+    private static byte[] u2(int value) {
+        return new byte[] { (byte)(value >> 8), (byte)value };
+    }
+
+    private static byte[] u2u2(int first, int second) {
+        return new byte[] { (byte)(first >> 8), (byte)first, (byte)(second >> 8), (byte)second };
+    }
+
+    /**
+     * Starts a method. Its code is added to the returned Code and the method is written by Code.end().
+     * @param access
+     * @param methodName
+     * @param descriptor
+     * @param maxLocals
+     * @return
+     */
+    Code method(int access, String methodName, String descriptor, int maxLocals) {
+        return new Code(access, utf8(methodName), utf8(descriptor), maxLocals);
+    }
+
+    /**
+     * Returns the bytes of the finished class file.
+     * @return
+     */
+    byte[] toByteArray() {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int codeIndex = utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            out.write(methods.toByteArray().length == 0 ? new byte[0] : patchCodeIndex(codeIndex));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Methods are written before the name of the Code attribute has to be in the pool, so each refers to it by a
+    // placeholder that is filled in here.
+    private final List<Integer> codeNamePositions = new ArrayList<>();
+
+    private byte[] patchCodeIndex(int codeIndex) {
+        byte[] bytes = methods.toByteArray();
+        for (int position : codeNamePositions) {
+            bytes[position] = (byte)(codeIndex >> 8);
+            bytes[position + 1] = (byte)codeIndex;
+        }
+        return bytes;
+    }
+
+    /**
+     * The code of a method being written.
+     */
+    class Code {
+        private final int access;
+        private final int nameIndex;
+        private final int descriptorIndex;
+        private final int maxLocals;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int stack = 0;
+        private int maxStack = 0;
+
+        private Code(int access, int nameIndex, int descriptorIndex, int maxLocals) {
+            this.access = access;
+            this.nameIndex = nameIndex;
+            this.descriptorIndex = descriptorIndex;
+            this.maxLocals = maxLocals;
+        }
+
+        /**
+         * Records how an instruction changes the depth of the operand stack.
+         * @param change
+         */
+        private void stack(int change) {
+            stack += change;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void u1(int value) {
+            code.write(value);
+        }
+
+        private void u2(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        /**
+         * Adds an instruction with no operands.
+         * @param opcode
+         * @param stackChange
+         */
+        void op(int opcode, int stackChange) {
+            u1(opcode);
+            stack(stackChange);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                u1(LDC_W);
+                u2(integer(value));
+            }
+            stack(1);
+        }
+
+        void aload(int local) {
+            local(ALOAD, local);
+            stack(1);
+        }
+
+        void astore(int local) {
+            local(ASTORE, local);
+            stack(-1);
+        }
+
+        private void local(int opcode, int local) {
+            if (local > 0xff) {
+                u1(WIDE);
+                u1(opcode);
+                u2(local);
+            } else {
+                u1(opcode);
+                u1(local);
+            }
+        }
+
+        /**
+         * Adds an instruction taking a constant pool index, such as a method call or a cast.
+         * @param opcode
+         * @param index
+         * @param stackChange
+         */
+        void ref(int opcode, int index, int stackChange) {
+            u1(opcode);
+            u2(index);
+            stack(stackChange);
+        }
+
+        /**
+         * Adds a branch to the label. The label may be placed before or after it.
+         * @param opcode
+         * @param label
+         */
+        void branch(int opcode, Label label) {
+            stack(opcode == GOTO ? 0 : -1);
+            int position = code.size();
+            u1(opcode);
+            if (label.position != -1) {
+                offset(label.position - position);
+            } else {
+                label.branches.add(position);
+                u2(0);
+            }
+        }
+
+        private void offset(int offset) {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) throw new TooLarge("Method too large.");
+            u2(offset);
+        }
+
+        /**
+         * Places the label at the next instruction and fills in the branches already made to it.
+         * @param label
+         */
+        void place(Label label) {
+            label.position = code.size();
+            if (label.branches.isEmpty()) return;
+
+            byte[] bytes = code.toByteArray();
+            for (int branch : label.branches) {
+                int offset = label.position - branch;
+                if (offset > Short.MAX_VALUE) throw new TooLarge("Method too large.");
+                bytes[branch + 1] = (byte)(offset >> 8);
+                bytes[branch + 2] = (byte)offset;
+            }
+            code.reset();
+            code.write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Writes the method to the class.
+         */
+        void end() {
+            if (code.size() > 0xffff) throw new TooLarge("Method too large.");
+            try {
+                methodsOut.writeShort(access);
+                methodsOut.writeShort(nameIndex);
+                methodsOut.writeShort(descriptorIndex);
+                methodsOut.writeShort(1);
+                codeNamePositions.add(methods.size());
+                methodsOut.writeShort(0);
+                methodsOut.writeInt(12 + code.size());
+                methodsOut.writeShort(maxStack);
+                methodsOut.writeShort(maxLocals);
+                methodsOut.writeInt(code.size());
+                methodsOut.write(code.toByteArray());
+                methodsOut.writeShort(0);
+                methodsOut.writeShort(0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            methodCount++;
+        }
+    }
+}
@@ -0,0 +1,765 @@
+package com.panzainterpreter.panza;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a resolved program into a tree of Java lambdas, a lighter alternative to the bytecode VM. Every node is
+ * compiled once, and everything that can be decided from the node, like which operator a binary expression applies or
+ * whether a variable is a global, a local or a captured variable, is decided then and baked into the lambda built for
+ * it. Running the program is then just calling the lambdas, with no visitor dispatch or switching on operators.
+ *
+ * Compiled code uses the same functions, classes and instances as the tree-walking interpreter. A function's body is
+ * compiled onto its declaration, and PanzaFunction runs the compiled body when there is one.
+ */
+public class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Expression>, Stmt.Visitor<ClosureCompiler.Statement> {
+
+    /**
+     * A compiled expression.
+     */
+    interface Expression {
+        Object evaluate(Environment environment);
+    }
+
+    /**
+     * A compiled expression whose value is only used for its truthiness, as the conditions of if and while statements
+     * are, so comparisons don't have to box their result.
+     */
+    interface Condition {
+        boolean test(Environment environment);
+    }
+
+    /**
+     * A compiled statement. Returns true if it ran a return statement, which stops the statements enclosing it, up to
+     * the function body, which takes the value.
+     */
+    interface Statement {
+        boolean execute(Environment environment);
+    }
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    // The value of the return statement that ended the function body being run.
+    private Object returnValue = null;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    /**
+     * Compiles and runs top-level code. Its blocks keep their variables in a frame of the given size.
+     * @param statements
+     * @param frameSize
+     */
+    void run(List<Stmt> statements, int frameSize) {
+        Statement[] compiled = compileAll(statements);
+        Environment environment = new Environment(new Object[frameSize], Environment.NO_UPVALUES);
+        try {
+            for (Statement statement : compiled) {
+                statement.execute(environment);
+            }
+        } catch (RuntimeError error) {
+            Panza.runtimeError(error);
+        }
+    }
+
+    private Statement[] compileAll(List<Stmt> statements) {
+        Statement[] compiled = new Statement[statements.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = statements.get(i).accept(this);
+        }
+        return compiled;
+    }
+
+    private Expression compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Expression[] compileArguments(List<Expr> exprs) {
+        Expression[] compiled = new Expression[exprs.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compile(exprs.get(i));
+        }
+        return compiled;
+    }
+
+    /**
+     * Compiles a function's body onto its declaration, where PanzaFunction finds it. Running it gives the value of
+     * the return statement that ended it, or nil. The TierManager also compiles single functions with this.
+     * @param function
+     */
+    void compileFunction(Stmt.Function function) {
+        Statement[] body = compileAll(function.body);
+        function.compiled = environment -> {
+            for (Statement statement : body) {
+                if (statement.execute(environment)) return takeReturnValue();
+            }
+            return null;
+        };
+        function.tier = TierManager.CLOSURES;
+    }
+
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    /**
+     * Runs the code the TierManager compiled a loop into on the loop's frame, returning true if a return statement in
+     * it ended the function, as a compiled statement does.
+     * @param environment
+     * @param compiled
+     * @return
+     */
+    private boolean runCompiledLoop(Environment environment, Expression compiled) {
+        Object value = compiled.evaluate(environment);
+        if (value == TierManager.LOOP_EXIT) return false;
+
+        returnValue = value;
+        return true;
+    }
+
+    @Override
+    public Statement visitBlockStmt(Stmt.Block stmt) {
+        Statement[] statements = compileAll(stmt.statements);
+        return environment -> {
+            for (Statement statement : statements) {
+                if (statement.execute(environment)) return true;
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Statement visitClassStmt(Stmt.Class stmt) {
+        Expression superclassExpression = stmt.superclass == null ? null : compile(stmt.superclass);
+        Token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+        for (Stmt.Function method : stmt.methods) {
+            compileFunction(method);
+        }
+        Definition definition = define(stmt.name, stmt.slot);
+        String name = stmt.name.lexeme;
+        int superSlot = stmt.superSlot;
+        boolean boxed = stmt.boxed;
+        int slot = stmt.slot;
+        List<Stmt.Function> declarations = stmt.methods;
+
+        return environment -> {
+            PanzaClass superclass = null;
+            if (superclassExpression != null) {
+                Object value = superclassExpression.evaluate(environment);
+                if (!(value instanceof PanzaClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class");
+                }
+                superclass = (PanzaClass)value;
+                environment.assign(superSlot, superclass);
+            }
+            Cell cell = boxed ? declareCell(environment, slot) : null;
+
+            Map<Symbol, PanzaFunction> methods = new HashMap<>();
+            if (superclass != null) methods.putAll(superclass.methods);
+            for (Stmt.Function method : declarations) {
+                methods.put(method.name.symbol, new PanzaFunction(method, environment.capture(method.captures),
+                        method.name.symbol == Symbol.INIT));
+            }
+
+            PanzaClass klass = new PanzaClass(name, superclass, methods);
+            if (cell != null) {
+                cell.value = klass;
+            } else {
+                definition.define(environment, klass);
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Statement visitExpressionStmt(Stmt.Expression stmt) {
+        Expression expression = compile(stmt.expression);
+        return environment -> {
+            expression.evaluate(environment);
+            return false;
+        };
+    }
+
+    @Override
+    public Statement visitFunctionStmt(Stmt.Function stmt) {
+        compileFunction(stmt);
+        Definition definition = define(stmt.name, stmt.slot);
+        int slot = stmt.slot;
+
+        if (stmt.boxed) {
+            // The function refers to itself, so the Cell has to be there before it is captured.
+            return environment -> {
+                Cell cell = declareCell(environment, slot);
+                cell.value = new PanzaFunction(stmt, environment.capture(stmt.captures), false);
+                return false;
+            };
+        }
+        return environment -> {
+            definition.define(environment, new PanzaFunction(stmt, environment.capture(stmt.captures), false));
+            return false;
+        };
+    }
+
+    private static Cell declareCell(Environment environment, int slot) {
+        Cell cell = new Cell(null);
+        environment.assign(slot, cell);
+        return cell;
+    }
+
+    @Override
+    public Statement visitIfStmt(Stmt.If stmt) {
+        Condition condition = compileCondition(stmt.condition);
+        Statement thenBranch = stmt.thenBranch.accept(this);
+        if (stmt.elseBranch == null) {
+            return environment -> condition.test(environment) && thenBranch.execute(environment);
+        }
+
+        Statement elseBranch = stmt.elseBranch.accept(this);
+        return environment -> condition.test(environment)
+                ? thenBranch.execute(environment)
+                : elseBranch.execute(environment);
+    }
+
+    @Override
+    public Statement visitPrintStmt(Stmt.Print stmt) {
+        Expression expression = compile(stmt.expression);
+        return environment -> {
+            System.out.println(Interpreter.stringify(expression.evaluate(environment)));
+            return false;
+        };
+    }
+
+    @Override
+    public Statement visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return environment -> {
+                returnValue = null;
+                return true;
+            };
+        }
+
+        Expression value = stmt.tailCall ? compileCall((Expr.Call)stmt.value, true) : compile(stmt.value);
+        return environment -> {
+            returnValue = value.evaluate(environment);
+            return true;
+        };
+    }
+
+    @Override
+    public Statement visitVarStmt(Stmt.Var stmt) {
+        Expression initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        Definition definition = define(stmt.name, stmt.slot);
+        int slot = stmt.slot;
+
+        if (stmt.boxed) {
+            // Each run of the declaration gets its own Cell.
+            return environment -> {
+                Object value = initializer == null ? null : initializer.evaluate(environment);
+                environment.assign(slot, new Cell(value));
+                return false;
+            };
+        }
+        if (initializer == null) {
+            return environment -> {
+                definition.define(environment, null);
+                return false;
+            };
+        }
+        return environment -> {
+            definition.define(environment, initializer.evaluate(environment));
+            return false;
+        };
+    }
+
+    @Override
+    public Statement visitWhileStmt(Stmt.While stmt) {
+        Condition condition = compileCondition(stmt.condition);
+        Statement body = stmt.body.accept(this);
+        TierManager tiers = interpreter.tiers;
+        if (tiers != null) {
+            return environment -> {
+                if (stmt.osrTier > TierManager.CLOSURES) return runCompiledLoop(environment, stmt.osr);
+
+                while (condition.test(environment)) {
+                    if (body.execute(environment)) return true;
+                    Expression compiled = tiers.backEdge(stmt, TierManager.CLOSURES, environment);
+                    if (compiled != null) return runCompiledLoop(environment, compiled);
+                }
+                return false;
+            };
+        }
+        return environment -> {
+            while (condition.test(environment)) {
+                if (body.execute(environment)) return true;
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Stores a newly declared variable that isn't kept in a Cell, either in its slot or as a global.
+     */
+    private interface Definition {
+        void define(Environment environment, Object value);
+    }
+
+    private Definition define(Token name, int slot) {
+        if (slot == -1) {
+            int index = Environment.globalIndex(name.symbol);
+            return (environment, value) -> globals.defineGlobal(index, value);
+        }
+        return (environment, value) -> environment.assign(slot, value);
+    }
+
+    @Override
+    public Expression visitAssignExpr(Expr.Assign expr) {
+        Expression value = compile(expr.value);
+        int slot = expr.slot;
+
+        if (expr.depth == -1) {
+            Token name = expr.name;
+            return environment -> {
+                Object result = value.evaluate(environment);
+                globals.assignGlobal(slot, name, result);
+                return result;
+            };
+        }
+        if (expr.boxed) {
+            if (expr.depth == 0) {
+                return environment -> ((Cell)environment.get(slot)).value = value.evaluate(environment);
+            }
+            return environment -> ((Cell)environment.getUpvalue(slot)).value = value.evaluate(environment);
+        }
+
+        // A captured variable that can be assigned is always in a Cell, so this is a slot of the current frame.
+        return environment -> {
+            Object result = value.evaluate(environment);
+            environment.assign(slot, result);
+            return result;
+        };
+    }
+
+    /**
+     * Each operator gets its own lambda. Arithmetic and comparisons with a local variable on the left and a number on
+     * the right, like "i < 10" or "n - 1", read the slot and use the number directly.
+     * @param expr
+     * @return
+     */
+    @Override
+    public Expression visitBinaryExpr(Expr.Binary expr) {
+        Token operator = expr.operator;
+        switch (operator.type) {
+            case EQUAL_EQUAL: {
+                Expression left = compile(expr.left);
+                Expression right = compile(expr.right);
+                return environment -> Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+            }
+            case BANG_EQUAL: {
+                Expression left = compile(expr.left);
+                Expression right = compile(expr.right);
+                return environment -> !Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+            }
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL: {
+                Condition condition = compileComparison(expr);
+                return environment -> condition.test(environment);
+            }
+        }
+
+        int slot = localSlot(expr.left);
+        if (slot != -1 && isNumber(expr.right)) {
+            double right = (double)((Expr.Literal)expr.right).value;
+            switch (operator.type) {
+                case PLUS: return environment -> {
+                    Object left = environment.get(slot);
+                    if (left instanceof Double) return (double)left + right;
+                    throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+                };
+                case MINUS: return environment -> leftNumber(environment, slot, operator) - right;
+                case STAR: return environment -> leftNumber(environment, slot, operator) * right;
+                case SLASH: return environment -> leftNumber(environment, slot, operator) / right;
+            }
+        }
+
+        Expression left = compile(expr.left);
+        Expression right = compile(expr.right);
+        switch (operator.type) {
+            case PLUS: return environment -> {
+                Object a = left.evaluate(environment);
+                Object b = right.evaluate(environment);
+                if (a instanceof Double && b instanceof Double) return (double)a + (double)b;
+                if (Rope.isString(a) && Rope.isString(b)) return Rope.concat(a, b);
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+            };
+            case MINUS: return environment -> {
+                Object a = left.evaluate(environment);
+                Object b = right.evaluate(environment);
+                Interpreter.checkNumberOperands(operator, a, b);
+                return (double)a - (double)b;
+            };
+            case STAR: return environment -> {
+                Object a = left.evaluate(environment);
+                Object b = right.evaluate(environment);
+                Interpreter.checkNumberOperands(operator, a, b);
+                return (double)a * (double)b;
+            };
+            case SLASH: return environment -> {
+                Object a = left.evaluate(environment);
+                Object b = right.evaluate(environment);
+                Interpreter.checkNumberOperands(operator, a, b);
+                return (double)a / (double)b;
+            };
+        }
+
+        //unreachable
+        throw new IllegalStateException();
+    }
+
+    private Condition compileComparison(Expr.Binary expr) {
+        Token operator = expr.operator;
+
+        int slot = localSlot(expr.left);
+        if (slot != -1 && isNumber(expr.right)) {
+            double right = (double)((Expr.Literal)expr.right).value;
+            switch (operator.type) {
+                case GREATER: return environment -> leftNumber(environment, slot, operator) > right;
+                case GREATER_EQUAL: return environment -> leftNumber(environment, slot, operator) >= right;
+                case LESS: return environment -> leftNumber(environment, slot, operator) < right;
+                case LESS_EQUAL: return environment -> leftNumber(environment, slot, operator) <= right;
+            }
+        }
+
+        Expression left = compile(expr.left);
+        Expression right = compile(expr.right);
+        switch (operator.type) {
+            case GREATER: return environment -> {
+                Object a = left.evaluate(environment);
+                Object b = right.evaluate(environment);
+                Interpreter.checkNumberOperands(operator, a, b);
+                return (double)a > (double)b;
+            };
+            case GREATER_EQUAL: return environment -> {
+                Object a = left.evaluate(environment);
+                Object b = right.evaluate(environment);
+                Interpreter.checkNumberOperands(operator, a, b);
+                return (double)a >= (double)b;
+            };
+            case LESS: return environment -> {
+                Object a = left.evaluate(environment);
+                Object b = right.evaluate(environment);
+                Interpreter.checkNumberOperands(operator, a, b);
+                return (double)a < (double)b;
+            };
+            default: return environment -> {
+                Object a = left.evaluate(environment);
+                Object b = right.evaluate(environment);
+                Interpreter.checkNumberOperands(operator, a, b);
+                return (double)a <= (double)b;
+            };
+        }
+    }
+
+    /**
+     * Reads the left operand from its slot when the right one is a number.
+     * @param environment
+     * @param slot
+     * @param operator
+     * @return
+     */
+    private static double leftNumber(Environment environment, int slot, Token operator) {
+        Object left = environment.get(slot);
+        if (!(left instanceof Double)) throw new RuntimeError(operator, "Operands must be numbers");
+        return (double)left;
+    }
+
+    /**
+     * Returns the slot of a variable in the current frame that isn't kept in a Cell, or -1 for any other expression.
+     * @param expr
+     * @return
+     */
+    private static int localSlot(Expr expr) {
+        if (!(expr instanceof Expr.Variable)) return -1;
+        Expr.Variable variable = (Expr.Variable)expr;
+        if (variable.depth != 0 || variable.boxed) return -1;
+        return variable.slot;
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal)expr).value instanceof Double;
+    }
+
+    /**
+     * Compiles an expression that is only tested for truthiness.
+     * @param expr
+     * @return
+     */
+    private Condition compileCondition(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            TokenType type = ((Expr.Binary)expr).operator.type;
+            if (type == TokenType.GREATER || type == TokenType.GREATER_EQUAL
+                    || type == TokenType.LESS || type == TokenType.LESS_EQUAL) {
+                return compileComparison((Expr.Binary)expr);
+            }
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            Condition left = compileCondition(logical.left);
+            Condition right = compileCondition(logical.right);
+            if (logical.operator.type == TokenType.OR) {
+                return environment -> left.test(environment) || right.test(environment);
+            }
+            return environment -> left.test(environment) && right.test(environment);
+        } else if (expr instanceof Expr.Grouping) {
+            return compileCondition(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+            Condition right = compileCondition(((Expr.Unary)expr).right);
+            return environment -> !right.test(environment);
+        } else if (expr instanceof Expr.Literal) {
+            boolean value = Interpreter.isTruthy(((Expr.Literal)expr).value);
+            return environment -> value;
+        }
+
+        Expression expression = compile(expr);
+        return environment -> Interpreter.isTruthy(expression.evaluate(environment));
+    }
+
+    @Override
+    public Expression visitCallExpr(Expr.Call expr) {
+        return compileCall(expr, false);
+    }
+
+    /**
+     * Compiles a call. A tail call to a Panza function is left for the function being returned from to make, as it
+     * is in the interpreter.
+     * @param expr
+     * @param tail
+     * @return
+     */
+    private Expression compileCall(Expr.Call expr, boolean tail) {
+        Expression[] arguments = compileArguments(expr.arguments);
+
+        // Calling a method straight off an instance or "super" doesn't need a bound method.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Expression object = compile(get.object);
+            Token name = get.name;
+            InlineCache cache = get.cache;
+            return environment -> {
+                Object value = object.evaluate(environment);
+                if (!(value instanceof PanzaInstance)) {
+                    throw new RuntimeError(name, "Only instances have properties.");
+                }
+
+                PanzaInstance instance = (PanzaInstance)value;
+                PanzaFunction method = cache.findMethod(instance, name);
+                if (method == null) {
+                    // A field holding something callable.
+                    return callValue(environment, expr, arguments, cache.get(instance, name), tail);
+                }
+                return invoke(environment, expr, arguments, method, instance, tail);
+            };
+        }
+
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            Expression superclass = readLocal(superExpr.depth, superExpr.slot, false);
+            Expression receiver = readLocal(superExpr.thisDepth, superExpr.thisSlot, false);
+            return environment -> {
+                PanzaFunction method = Interpreter.findSuperMethod(superExpr,
+                        (PanzaClass)superclass.evaluate(environment));
+                return invoke(environment, expr, arguments, method,
+                        (PanzaInstance)receiver.evaluate(environment), tail);
+            };
+        }
+
+        Expression callee = compile(expr.callee);
+        return environment -> callValue(environment, expr, arguments, callee.evaluate(environment), tail);
+    }
+
+    private Object callValue(Environment environment, Expr.Call expr, Expression[] arguments, Object callee,
+                             boolean tail) {
+        if (callee instanceof PanzaFunction) {
+            PanzaFunction function = (PanzaFunction)callee;
+            return invoke(environment, expr, arguments, function, function.receiver, tail);
+        }
+
+        if (callee instanceof PanzaClass && ((PanzaClass)callee).initializer != null) {
+            // The initializer returns the instance.
+            PanzaClass klass = (PanzaClass)callee;
+            return invoke(environment, expr, arguments, klass.initializer, new PanzaInstance(klass), tail);
+        }
+
+        switch (arguments.length) {
+            case 0:
+                return Interpreter.checkCallable(expr, callee, 0).call0(interpreter);
+            case 1: {
+                Object a = arguments[0].evaluate(environment);
+                return Interpreter.checkCallable(expr, callee, 1).call1(interpreter, a);
+            }
+            case 2: {
+                Object a = arguments[0].evaluate(environment);
+                Object b = arguments[1].evaluate(environment);
+                return Interpreter.checkCallable(expr, callee, 2).call2(interpreter, a, b);
+            }
+            default: {
+                Object[] values = evaluateAll(environment, arguments);
+                return Interpreter.checkCallable(expr, callee, values.length).call(interpreter, values);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the arguments into a new frame for the function and calls it with the given receiver.
+     */
+    private Object invoke(Environment environment, Expr.Call expr, Expression[] arguments, PanzaFunction function,
+                          PanzaInstance receiver, boolean tail) {
+        if (arguments.length != function.arity()) {
+            // The arguments are still evaluated before the error is reported, just like for any other call.
+            evaluateAll(environment, arguments);
+            Interpreter.checkArity(expr, function, arguments.length);
+        }
+
+        Object[] frame = function.newFrame(receiver);
+        int slot = receiver == null ? 0 : 1;
+        for (Expression argument : arguments) {
+            frame[slot++] = argument.evaluate(environment);
+        }
+
+        if (tail) {
+            interpreter.tailFunction = function;
+            interpreter.tailReceiver = receiver;
+            interpreter.tailFrame = frame;
+            return null;
+        }
+        return function.run(interpreter, receiver, frame);
+    }
+
+    private static Object[] evaluateAll(Environment environment, Expression[] arguments) {
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arguments[i].evaluate(environment);
+        }
+        return values;
+    }
+
+    @Override
+    public Expression visitGetExpr(Expr.Get expr) {
+        Expression object = compile(expr.object);
+        Token name = expr.name;
+        InlineCache cache = expr.cache;
+        return environment -> {
+            Object value = object.evaluate(environment);
+            if (value instanceof PanzaInstance) return cache.get((PanzaInstance)value, name);
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    @Override
+    public Expression visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Expression visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public Expression visitLogicalExpr(Expr.Logical expr) {
+        Expression left = compile(expr.left);
+        Expression right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return environment -> {
+                Object value = left.evaluate(environment);
+                return Interpreter.isTruthy(value) ? value : right.evaluate(environment);
+            };
+        }
+        return environment -> {
+            Object value = left.evaluate(environment);
+            return Interpreter.isTruthy(value) ? right.evaluate(environment) : value;
+        };
+    }
+
+    @Override
+    public Expression visitSetExpr(Expr.Set expr) {
+        Expression object = compile(expr.object);
+        Expression value = compile(expr.value);
+        Token name = expr.name;
+        InlineCache cache = expr.cache;
+        return environment -> {
+            Object instance = object.evaluate(environment);
+            if (!(instance instanceof PanzaInstance)) {
+                throw new RuntimeError(name, "Only instance have fields");
+            }
+
+            Object result = value.evaluate(environment);
+            cache.set((PanzaInstance)instance, name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Expression visitSuperExpr(Expr.Super expr) {
+        Expression superclass = readLocal(expr.depth, expr.slot, false);
+        Expression receiver = readLocal(expr.thisDepth, expr.thisSlot, false);
+        return environment -> {
+            PanzaFunction method = Interpreter.findSuperMethod(expr, (PanzaClass)superclass.evaluate(environment));
+            return method.bind((PanzaInstance)receiver.evaluate(environment));
+        };
+    }
+
+    @Override
+    public Expression visitThisExpr(Expr.This expr) {
+        return readLocal(expr.depth, expr.slot, false);
+    }
+
+    @Override
+    public Expression visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            Condition right = compileCondition(expr.right);
+            return environment -> !right.test(environment);
+        }
+
+        Expression right = compile(expr.right);
+        Token operator = expr.operator;
+        return environment -> {
+            Object value = right.evaluate(environment);
+            Interpreter.checkNumberOperand(operator, value);
+            return -(double)value;
+        };
+    }
+
+    @Override
+    public Expression visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == -1) {
+            int index = expr.slot;
+            Token name = expr.name;
+            return environment -> globals.getGlobal(index, name);
+        }
+        return readLocal(expr.depth, expr.slot, expr.boxed);
+    }
+
+    /**
+     * Reads a slot of the current frame at depth 0, or one of the variables the running function captured at depth 1.
+     * @param depth
+     * @param slot
+     * @param boxed Whether the variable is kept in a Cell
+     * @return
+     */
+    private static Expression readLocal(int depth, int slot, boolean boxed) {
+        if (depth == 0) {
+            if (boxed) return environment -> ((Cell)environment.get(slot)).value;
+            return environment -> environment.get(slot);
+        }
+        if (boxed) return environment -> ((Cell)environment.getUpvalue(slot)).value;
+        return environment -> environment.getUpvalue(slot);
+    }
+}
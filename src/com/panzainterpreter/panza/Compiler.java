@@ -0,0 +1,682 @@
+package com.panzainterpreter.panza;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lowers a resolved syntax tree into bytecode for the VM. Local variables live in stack slots and variables captured
+ * by closures are reached through upvalues, so the compiler does its own scope tracking instead of relying on the
+ * distances the Resolver records on the nodes. The Resolver must still run first as it reports the static errors.
+ */
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private enum FunctionType {
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+        SCRIPT
+    }
+
+    private static class Local {
+        final String name;
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    /**
+     * Compilation state for the function currently being compiled. One is pushed for each nested function declaration.
+     */
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the function being called, or the receiver when compiling a method.
+            if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+                locals.add(new Local("this", 0));
+            } else {
+                locals.add(new Local("", 0));
+            }
+        }
+    }
+
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private static final int MAX_SLOTS = 256;
+    private static final int UINT16_MAX = 0xffff;
+
+    private FunctionState current = null;
+    private ClassState currentClass = null;
+    private int line = 1;
+
+    /**
+     * Compiles the top level statements into an unnamed script function.
+     * @param statements
+     * @return
+     */
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction(null), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    /**
+     * Creates the class, then leaves it on the stack while each method closure is compiled and attached to it. A
+     * superclass is stored in a hidden "super" local that the methods capture, the same way the Interpreter keeps it
+     * in an environment surrounding the methods.
+     * @param stmt
+     * @return
+     */
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int global = parseVariable(stmt.name);
+
+        emitByte(OpCode.CLASS);
+        emitShort(identifierConstant(stmt.name));
+        defineVariable(global);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+
+            beginScope();
+            addLocal("super");
+            markInitialized();
+
+            namedVariable(stmt.name, false);
+            emitByte(OpCode.INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        namedVariable(stmt.name, false);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            line = method.name.line;
+            emitByte(OpCode.METHOD);
+            emitShort(identifierConstant(method.name));
+        }
+        emitByte(OpCode.POP);
+
+        if (classState.hasSuperclass) endScope();
+
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitByte(OpCode.POP);
+        return null;
+    }
+
+    /**
+     * The function name is marked initialized before the body is compiled so the function can refer to itself.
+     * @param stmt
+     * @return
+     */
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        int global = parseVariable(stmt.name);
+        markInitialized();
+
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitByte(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emitByte(OpCode.POP);
+
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitByte(OpCode.PRINT);
+        return null;
+    }
+
+    /**
+     * Initializers always hand back the instance, which lives in slot zero, whether or not the return has a value.
+     * @param stmt
+     * @return
+     */
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (current.type == FunctionType.INITIALIZER) {
+            emitBytes(OpCode.GET_LOCAL, 0);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emitByte(OpCode.NIL);
+        }
+        emitByte(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        int global = parseVariable(stmt.name);
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitByte(OpCode.NIL);
+        }
+
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = currentChunk().count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitByte(OpCode.POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emitByte(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        namedVariable(expr.name, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL:    emitBytes(OpCode.EQUAL, OpCode.NOT); break;
+            case EQUAL_EQUAL:   emitByte(OpCode.EQUAL); break;
+            case GREATER:       emitByte(OpCode.GREATER); break;
+            case GREATER_EQUAL: emitByte(OpCode.GREATER_EQUAL); break;
+            case LESS:          emitByte(OpCode.LESS); break;
+            case LESS_EQUAL:    emitByte(OpCode.LESS_EQUAL); break;
+            case PLUS:          emitByte(OpCode.ADD); break;
+            case MINUS:         emitByte(OpCode.SUBTRACT); break;
+            case STAR:          emitByte(OpCode.MULTIPLY); break;
+            case SLASH:         emitByte(OpCode.DIVIDE); break;
+        }
+        return null;
+    }
+
+    /**
+     * Calls to a property or a superclass method are compiled to a single invoke instruction so the VM can call the
+     * method without creating a bound method first.
+     * @param expr
+     * @return
+     */
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            compileArguments(expr);
+            line = expr.paren.line;
+            emitByte(OpCode.INVOKE);
+            emitShort(identifierConstant(get.name));
+            emitByte(expr.arguments.size());
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            namedVariable(new Token(TokenType.THIS, "this", null, superExpr.keyword.line), false);
+            compileArguments(expr);
+            namedVariable(superExpr.keyword, false);
+            line = expr.paren.line;
+            emitByte(OpCode.SUPER_INVOKE);
+            emitShort(identifierConstant(superExpr.method));
+            emitByte(expr.arguments.size());
+        } else {
+            compile(expr.callee);
+            compileArguments(expr);
+            line = expr.paren.line;
+            emitBytes(OpCode.CALL, expr.arguments.size());
+        }
+        return null;
+    }
+
+    private void compileArguments(Expr.Call expr) {
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitByte(OpCode.GET_PROPERTY);
+        emitShort(identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitByte(OpCode.NIL);
+        } else if (Boolean.TRUE.equals(expr.value)) {
+            emitByte(OpCode.TRUE);
+        } else if (Boolean.FALSE.equals(expr.value)) {
+            emitByte(OpCode.FALSE);
+        } else {
+            emitByte(OpCode.CONSTANT);
+            emitShort(makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    /**
+     * The left operand is left on the stack as the result if it short-circuits, otherwise it is popped and the right
+     * operand is evaluated in its place.
+     * @param expr
+     * @return
+     */
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitByte(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitByte(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitByte(OpCode.SET_PROPERTY);
+        emitShort(identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        namedVariable(new Token(TokenType.THIS, "this", null, expr.keyword.line), false);
+        namedVariable(expr.keyword, false);
+        line = expr.method.line;
+        emitByte(OpCode.GET_SUPER);
+        emitShort(identifierConstant(expr.method));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable(expr.keyword, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG:  emitByte(OpCode.NOT); break;
+            case MINUS: emitByte(OpCode.NEGATE); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name, false);
+        return null;
+    }
+
+    /**
+     * Compiles a function body into its own VmFunction, then emits the instruction that wraps it in a closure along
+     * with where each of its upvalues should be captured from.
+     * @param stmt
+     * @param type
+     */
+    private void function(Stmt.Function stmt, FunctionType type) {
+        current = new FunctionState(current, new VmFunction(stmt.name.lexeme), type);
+        beginScope();
+
+        for (Token param : stmt.params) {
+            current.function.arity++;
+            declareVariable(param);
+            markInitialized();
+        }
+
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        List<Upvalue> upvalues = current.upvalues;
+        VmFunction function = endFunction();
+
+        line = stmt.name.line;
+        emitByte(OpCode.CLOSURE);
+        emitShort(makeConstant(function));
+        for (Upvalue upvalue : upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    private VmFunction endFunction() {
+        emitReturn();
+        VmFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitBytes(OpCode.GET_LOCAL, 0);
+        } else {
+            emitByte(OpCode.NIL);
+        }
+        emitByte(OpCode.RETURN);
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    /**
+     * Discards the locals declared in the scope being closed. Locals captured by a closure are moved off the stack
+     * into their upvalue instead of just being popped.
+     */
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emitByte(OpCode.CLOSE_UPVALUE);
+            } else {
+                emitByte(OpCode.POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    /**
+     * Emits the instruction to read or write a variable, choosing between a stack slot, an upvalue and a global.
+     * @param name
+     * @param assign
+     */
+    private void namedVariable(Token name, boolean assign) {
+        line = name.line;
+
+        int arg = resolveLocal(current, name.lexeme);
+        if (arg != -1) {
+            emitBytes(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL, arg);
+            return;
+        }
+
+        arg = resolveUpvalue(current, name);
+        if (arg != -1) {
+            emitBytes(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE, arg);
+            return;
+        }
+
+        emitByte(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL);
+        emitShort(globalIndex(name));
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Looks for the variable in each enclosing function in turn, threading an upvalue through every function in
+     * between so each closure only has to look one level out.
+     * @param state
+     * @param name
+     * @return
+     */
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name.lexeme);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true, name);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false, name);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal, Token name) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        if (state.upvalues.size() == MAX_SLOTS) {
+            Panza.error(name, "Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    /**
+     * Declares the variable and returns its global number if it is a global, which is all a global needs as they are
+     * late bound.
+     * @param name
+     * @return
+     */
+    private int parseVariable(Token name) {
+        declareVariable(name);
+        if (current.scopeDepth > 0) return 0;
+
+        return globalIndex(name);
+    }
+
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) return;
+        if (current.locals.size() == MAX_SLOTS) {
+            Panza.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme, -1));
+    }
+
+    private void addLocal(String name) {
+        current.locals.add(new Local(name, -1));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    /**
+     * A local's value is already sitting in its stack slot, so only globals need an instruction to define them.
+     * @param global
+     */
+    private void defineVariable(int global) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitByte(OpCode.DEFINE_GLOBAL);
+        emitShort(global);
+    }
+
+    private int globalIndex(Token name) {
+        int index = Environment.globalIndex(name.symbol);
+        if (index > UINT16_MAX) {
+            Panza.error(name, "Too many global variables.");
+            return 0;
+        }
+        return index;
+    }
+
+    private int identifierConstant(Token name) {
+        return makeConstant(name.symbol);
+    }
+
+    private int makeConstant(Object value) {
+        int index = currentChunk().addConstant(value);
+        if (index > UINT16_MAX) {
+            Panza.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private Chunk currentChunk() {
+        return current.function.chunk;
+    }
+
+    private void emitByte(int b) {
+        currentChunk().write(b, line);
+    }
+
+    private void emitBytes(int b1, int b2) {
+        emitByte(b1);
+        emitByte(b2);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    /**
+     * Emits a jump with a placeholder offset and returns where the offset is so it can be patched once the target
+     * is known.
+     * @param instruction
+     * @return
+     */
+    private int emitJump(byte instruction) {
+        emitByte(instruction);
+        emitShort(0xffff);
+        return currentChunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = currentChunk();
+        int jump = chunk.count - offset - 2;
+        if (jump > UINT16_MAX) {
+            Panza.error(line, "Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitByte(OpCode.LOOP);
+        int offset = currentChunk().count - loopStart + 2;
+        if (offset > UINT16_MAX) {
+            Panza.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+}
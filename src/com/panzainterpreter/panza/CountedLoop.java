@@ -0,0 +1,145 @@
+package com.panzainterpreter.panza;
+
+import java.util.List;
+
+/**
+ * Recognizes the loops a for statement desugars into when they count a variable up or down by a constant step:
+ *
+ *   { var i = start; while (i < bound) { body; i = i + step; } }
+ *
+ * The counter has to be a var stored in the Environment the loop runs in that no closure captures, be compared against
+ * the bound with <, <=, > or >=, and be assigned only by the increment. The interpreter can then keep the counter in
+ * a Java double and do the increment itself. The bound is still evaluated every iteration, so it can be any
+ * expression.
+ */
+class CountedLoop {
+    private CountedLoop() {}
+
+    /**
+     * Works out whether the resolved loop is a counted loop and records what the interpreter needs on the node.
+     * @param loop
+     */
+    static void recognize(Stmt.While loop) {
+        loop.counted = false;
+
+        if (!(loop.condition instanceof Expr.Binary)) return;
+        Expr.Binary condition = (Expr.Binary)loop.condition;
+        if (!isComparison(condition.operator.type) || !(condition.left instanceof Expr.Variable)) return;
+
+        // Nothing outside the loop can change a counter that isn't captured while the loop runs.
+        Expr.Variable counter = (Expr.Variable)condition.left;
+        if (counter.depth != 0 || counter.declaration == null || counter.declaration.captured) return;
+
+        if (!(loop.body instanceof Stmt.Block)) return;
+        List<Stmt> statements = ((Stmt.Block)loop.body).statements;
+        if (statements.isEmpty()) return;
+
+        // The increment is "i = i + step" or "i = i - step". The block around it declares nothing so it runs in the
+        // same Environment as the condition.
+        Stmt last = statements.get(statements.size() - 1);
+        if (!(last instanceof Stmt.Expression) || !(((Stmt.Expression)last).expression instanceof Expr.Assign)) return;
+        Expr.Assign increment = (Expr.Assign)((Stmt.Expression)last).expression;
+        if (increment.depth != 0 || increment.slot != counter.slot) return;
+        if (!(increment.value instanceof Expr.Binary)) return;
+
+        Expr.Binary sum = (Expr.Binary)increment.value;
+        TokenType operator = sum.operator.type;
+        if (operator != TokenType.PLUS && operator != TokenType.MINUS) return;
+        if (!(sum.left instanceof Expr.Variable) || !(sum.right instanceof Expr.Literal)) return;
+        Expr.Variable read = (Expr.Variable)sum.left;
+        if (read.depth != 0 || read.slot != counter.slot) return;
+        Object step = ((Expr.Literal)sum.right).value;
+        if (!(step instanceof Double)) return;
+
+        // Nothing in the loop but the increment may assign the counter.
+        for (int i = 0; i < statements.size() - 1; i++) {
+            if (assigns(statements.get(i), counter.name.symbol)) return;
+        }
+        if (assigns(condition.right, counter.name.symbol)) return;
+
+        loop.counted = true;
+        loop.counterSlot = counter.slot;
+        loop.step = operator == TokenType.PLUS ? (double)step : -(double)step;
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.LESS || type == TokenType.LESS_EQUAL
+                || type == TokenType.GREATER || type == TokenType.GREATER_EQUAL;
+    }
+
+    /**
+     * Returns true if anything in the statement assigns a variable with the given name. Shadowing variables with the
+     * same name are counted too, which is safe.
+     * @param stmt
+     * @param name
+     * @return
+     */
+    private static boolean assigns(Stmt stmt, Symbol name) {
+        if (stmt instanceof Stmt.Block) return assignsAny(((Stmt.Block)stmt).statements, name);
+        if (stmt instanceof Stmt.Class) {
+            for (Stmt.Function method : ((Stmt.Class)stmt).methods) {
+                if (assigns(method, name)) return true;
+            }
+            return false;
+        }
+        if (stmt instanceof Stmt.Expression) return assigns(((Stmt.Expression)stmt).expression, name);
+        if (stmt instanceof Stmt.Function) return assignsAny(((Stmt.Function)stmt).body, name);
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return assigns(ifStmt.condition, name) || assigns(ifStmt.thenBranch, name)
+                    || (ifStmt.elseBranch != null && assigns(ifStmt.elseBranch, name));
+        }
+        if (stmt instanceof Stmt.Print) return assigns(((Stmt.Print)stmt).expression, name);
+        if (stmt instanceof Stmt.Return) {
+            Expr value = ((Stmt.Return)stmt).value;
+            return value != null && assigns(value, name);
+        }
+        if (stmt instanceof Stmt.Var) {
+            Expr initializer = ((Stmt.Var)stmt).initializer;
+            return initializer != null && assigns(initializer, name);
+        }
+        if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While)stmt;
+            return assigns(loop.condition, name) || assigns(loop.body, name);
+        }
+        return false;
+    }
+
+    private static boolean assignsAny(List<Stmt> statements, Symbol name) {
+        for (Stmt statement : statements) {
+            if (assigns(statement, name)) return true;
+        }
+        return false;
+    }
+
+    private static boolean assigns(Expr expr, Symbol name) {
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            return assign.name.symbol == name || assigns(assign.value, name);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return assigns(binary.left, name) || assigns(binary.right, name);
+        }
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            if (assigns(call.callee, name)) return true;
+            for (Expr argument : call.arguments) {
+                if (assigns(argument, name)) return true;
+            }
+            return false;
+        }
+        if (expr instanceof Expr.Get) return assigns(((Expr.Get)expr).object, name);
+        if (expr instanceof Expr.Grouping) return assigns(((Expr.Grouping)expr).expression, name);
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return assigns(logical.left, name) || assigns(logical.right, name);
+        }
+        if (expr instanceof Expr.Set) {
+            Expr.Set set = (Expr.Set)expr;
+            return assigns(set.object, name) || assigns(set.value, name);
+        }
+        if (expr instanceof Expr.Unary) return assigns(((Expr.Unary)expr).right, name);
+        return false;
+    }
+}
@@ -0,0 +1,217 @@
+package com.panzainterpreter.panza;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes code from a resolved program that can never run or whose result is never used: statements following a
+ * return, local variables that are never read or assigned and whose initializer has no effect, local functions that
+ * are never read or assigned, and expression statements with no effect. When the whole program is known up front,
+ * global functions that nothing refers to are removed as well.
+ *
+ * It relies on what the Resolver recorded about each declaration, and removing a declaration moves the slots of the
+ * variables after it, so the program has to be resolved again afterwards.
+ */
+public class DeadCodeEliminator implements Stmt.Visitor<Stmt> {
+    private final Set<Integer> referencedGlobals;
+    private final boolean wholeProgram;
+
+    // How many scopes deep we are. Declarations at depth 0 are globals.
+    private int depth = 0;
+
+    // The number of statements removed so far, counting the statements nested inside them.
+    int removed = 0;
+
+    /**
+     * @param referencedGlobals The globals the Resolver saw being read or assigned
+     * @param wholeProgram Whether nothing else will be run alongside this code later, as with the REPL
+     */
+    DeadCodeEliminator(Set<Integer> referencedGlobals, boolean wholeProgram) {
+        this.referencedGlobals = referencedGlobals;
+        this.wholeProgram = wholeProgram;
+    }
+
+    /**
+     * Removes the dead statements from the list. Everything after a return is dropped, as nothing can jump past it.
+     * @param statements
+     * @return
+     */
+    List<Stmt> eliminate(List<Stmt> statements) {
+        List<Stmt> live = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            Stmt result = statement.accept(this);
+            if (result != null) live.add(result);
+            if (result != statement) changed = true;
+
+            if (statement instanceof Stmt.Return) {
+                for (int j = i + 1; j < statements.size(); j++) {
+                    removed += count(statements.get(j));
+                    changed = true;
+                }
+                break;
+            }
+        }
+
+        return changed ? live : statements;
+    }
+
+    /**
+     * Eliminates dead code in a statement that has to stay a statement, such as the body of a loop.
+     * @param stmt
+     * @return
+     */
+    private Stmt eliminateBody(Stmt stmt) {
+        Stmt result = stmt.accept(this);
+        if (result == null) return new Stmt.Block(new ArrayList<>());
+        return result;
+    }
+
+    private Stmt remove(Stmt stmt) {
+        removed += count(stmt);
+        return null;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        depth++;
+        List<Stmt> statements = eliminate(stmt.statements);
+        depth--;
+
+        // The statements in the block have been counted as they were removed, so only the block itself is left.
+        if (statements.isEmpty()) {
+            removed++;
+            return null;
+        }
+        if (statements == stmt.statements) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function result = eliminateFunction(method);
+            methods.add(result);
+            if (result != method) changed = true;
+        }
+
+        if (!changed) return stmt;
+        return new Stmt.Class(stmt.name, stmt.superclass, methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        if (isPure(stmt.expression)) return remove(stmt);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        if (depth > 0 && !stmt.used && !stmt.assigned) return remove(stmt);
+        if (depth == 0 && wholeProgram && !referencedGlobals.contains(Environment.globalIndex(stmt.name.symbol))) {
+            return remove(stmt);
+        }
+
+        return eliminateFunction(stmt);
+    }
+
+    private Stmt.Function eliminateFunction(Stmt.Function stmt) {
+        depth++;
+        List<Stmt> body = eliminate(stmt.body);
+        depth--;
+
+        if (body == stmt.body) return stmt;
+        return new Stmt.Function(stmt.name, stmt.params, body);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Stmt thenBranch = eliminateBody(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : eliminateBody(stmt.elseBranch);
+        if (thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(stmt.condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (depth > 0 && !stmt.used && !stmt.assigned && (stmt.initializer == null || isPure(stmt.initializer))) {
+            return remove(stmt);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Stmt body = eliminateBody(stmt.body);
+        if (body == stmt.body) return stmt;
+        return new Stmt.While(stmt.condition, body);
+    }
+
+    /**
+     * Returns true if evaluating the expression can't have any effect, including raising a runtime error. Reading a
+     * global can fail if it isn't defined, but a local is always there.
+     * @param expr
+     * @return
+     */
+    private static boolean isPure(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.This) return true;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable)expr).depth != -1;
+        if (expr instanceof Expr.Grouping) return isPure(((Expr.Grouping)expr).expression);
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return isPure(logical.left) && isPure(logical.right);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return unary.operator.type == TokenType.BANG && isPure(unary.right);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            TokenType operator = binary.operator.type;
+            return (operator == TokenType.EQUAL_EQUAL || operator == TokenType.BANG_EQUAL)
+                    && isPure(binary.left) && isPure(binary.right);
+        }
+        return false;
+    }
+
+    /**
+     * Counts the statements in a statement, including itself.
+     * @param stmt
+     * @return
+     */
+    static int count(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) return 1 + count(((Stmt.Block)stmt).statements);
+        if (stmt instanceof Stmt.Function) return 1 + count(((Stmt.Function)stmt).body);
+        if (stmt instanceof Stmt.While) return 1 + count(((Stmt.While)stmt).body);
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return 1 + count(ifStmt.thenBranch) + (ifStmt.elseBranch == null ? 0 : count(ifStmt.elseBranch));
+        }
+        if (stmt instanceof Stmt.Class) {
+            int total = 1;
+            for (Stmt.Function method : ((Stmt.Class)stmt).methods) total += count(method);
+            return total;
+        }
+        return 1;
+    }
+
+    private static int count(List<Stmt> statements) {
+        int total = 0;
+        for (Stmt statement : statements) total += count(statement);
+        return total;
+    }
+}
@@ -1,73 +1,147 @@
 package com.panzainterpreter.panza;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+/**
+ * Holds variables as an array of slots. A function call's frame holds the locals of the function body, at the slots the
+ * Resolver assigned them, alongside the variables the function captured from the functions enclosing it when it was
+ * created. Nothing refers to an enclosing frame, so a closure only keeps alive the variables it actually uses.
+ *
+ * The global environment is indexed by global number instead: every global name is given a number the first time it
+ * is seen, so resolved code can keep hold of the number and index straight into the table.
+ */
 public class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Marks a global slot whose variable has not been defined yet.
+    static final Object UNDEFINED = new Object();
+
+    static final Object[] NO_UPVALUES = new Object[0];
+
+    // Global numbers are shared by every global environment, so a resolved program can run in any interpreter. Each
+    // number is kept on its name's Symbol.
+    private static final List<Symbol> globalNames = new ArrayList<>();
+
+    private Object[] slots;
+    private final Object[] upvalues;
 
     Environment() {
-        enclosing = null;
+        slots = new Object[0];
+        upvalues = NO_UPVALUES;
     }
 
-    Environment (Environment enclosing) {
-        this.enclosing = enclosing;
+    /**
+     * Creates a frame around slots that may already be filled in, such as a function's frame with the arguments
+     * written into it.
+     * @param slots
+     * @param upvalues The variables the running function captured
+     */
+    Environment(Object[] slots, Object[] upvalues) {
+        this.slots = slots;
+        this.upvalues = upvalues;
     }
 
     /**
-     * Checks the hash map for the queried variable, if the variable has been defined it's value will be returned.
-     * If the variable has not been define a RuntimeError will be thrown.
-     * @param name The name of the variable being queried
-     * @return The value associated with the queried variable
+     * Returns the number of a global variable, numbering the name if this is the first time it has been seen.
+     * @param name
+     * @return
      */
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    static synchronized int globalIndex(Symbol name) {
+        if (name.global == -1) {
+            name.global = globalNames.size();
+            globalNames.add(name);
         }
+        return name.global;
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    static synchronized String globalName(int index) {
+        return globalNames.get(index).name;
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    /**
+     * Returns the value of the queried global, or UNDEFINED if it has not been defined.
+     * @param index The number of the global being queried
+     * @return The value associated with the queried global
+     */
+    Object lookUpGlobal(int index) {
+        if (index >= slots.length) return UNDEFINED;
+        return slots[index];
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+    /**
+     * Returns the value of the queried global. If the variable has not been defined a RuntimeError will be thrown.
+     * @param index The number of the global being queried
+     * @param name The name of the variable being queried, used to report the error
+     * @return The value associated with the queried global
+     */
+    Object getGlobal(int index, Token name) {
+        Object value = lookUpGlobal(index);
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
         }
+        return value;
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+    void assignGlobal(int index, Token name, Object value) {
+        if (lookUpGlobal(index) == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
         }
+        slots[index] = value;
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    void defineGlobal(int index, Object value) {
+        if (index >= slots.length) {
+            int length = slots.length;
+            slots = Arrays.copyOf(slots, Math.max(index + 1, length * 2));
+            Arrays.fill(slots, length, slots.length, UNDEFINED);
+        }
+        slots[index] = value;
     }
 
+    /**
+     * Defines a global by name, for the natives the interpreter sets up itself.
+     * @param name
+     * @param value
+     */
     void define(String name, Object value) {
-        values.put(name, value);
+        defineGlobal(globalIndex(Symbol.intern(name)), value);
     }
 
     /**
-     * Walks a fixed number of hops up the parent chain and returns the environment there.
-     * @param distance
+     * Returns the frame's slots themselves, for a loop compiled by the JitCompiler to take over mid-run. It keeps the
+     * variables in JVM locals while it runs and writes them back when it finishes.
      * @return
      */
-    private Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
-        }
+    Object[] slots() {
+        return slots;
+    }
 
-        return environment;
+    Object get(int slot) {
+        return slots[slot];
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    void assign(int slot, Object value) {
+        slots[slot] = value;
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    Object getUpvalue(int index) {
+        return upvalues[index];
+    }
+
+    /**
+     * Collects the variables a function being created here captures. A capture that isn't negative is a slot of this
+     * frame, and the complement of a negative one is a variable this frame's function captured itself.
+     * @param captures
+     * @return
+     */
+    Object[] capture(int[] captures) {
+        if (captures.length == 0) return NO_UPVALUES;
+
+        Object[] values = new Object[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int capture = captures[i];
+            values[i] = capture >= 0 ? slots[capture] : upvalues[~capture];
+        }
+        return values;
     }
 }
@@ -32,6 +32,10 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    int depth = -1;
+    int slot;
+    boolean boxed = false;
   }
 
 /**
@@ -51,6 +55,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    Specialization specialization = Specialization.UNINITIALIZED;
   }
 
 /**
@@ -87,6 +93,8 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    InlineCache cache = new InlineCache();
   }
 
 /**
@@ -155,6 +163,8 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    InlineCache cache = new InlineCache();
   }
 
 /**
@@ -172,6 +182,11 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    int depth = -1;
+    int slot;
+    int thisDepth;
+    int thisSlot;
   }
 
 /**
@@ -187,6 +202,9 @@ abstract class Expr {
     }
 
     final Token keyword;
+
+    int depth = -1;
+    int slot;
   }
 
 /**
@@ -219,6 +237,11 @@ abstract class Expr {
     }
 
     final Token name;
+
+    int depth = -1;
+    int slot;
+    boolean boxed = false;
+    Stmt.Var declaration = null;
   }
 
 
@@ -0,0 +1,135 @@
+package com.panzainterpreter.panza;
+
+/**
+ * A polymorphic inline cache for a property get or set site. Each entry remembers a receiver shape and what the
+ * lookup found for it: the index of a field, the method to bind, or for a set that adds a field, the shape the
+ * instance moves to. Shapes belong to a single class and classes never change once defined, so a matching shape means
+ * the remembered result is still correct and the access is a shape check plus an array access.
+ *
+ * Once a site has seen more shapes than it has entries for it is megamorphic, and it stops caching and always does
+ * the full lookup.
+ */
+public class InlineCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private Shape[] shapes = null;
+    private int[] indexes;
+    private Object[] targets;
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    /**
+     * Reads the property off the instance, returning a field value or a bound method.
+     * @param instance
+     * @param name
+     * @return
+     */
+    Object get(PanzaInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                if (targets[i] == null) return instance.fields[indexes[i]];
+                return ((PanzaFunction)targets[i]).bind(instance);
+            }
+        }
+
+        if (megamorphic) return instance.get(name);
+
+        int index = shape.indexOf(name.symbol);
+        if (index != -1) {
+            add(shape, index, null);
+            return instance.fields[index];
+        }
+
+        PanzaFunction method = instance.findMethod(name);
+        add(shape, -1, method);
+        return method.bind(instance);
+    }
+
+    /**
+     * Finds the method a call site invokes on the instance without binding it. Returns null if the instance has a
+     * field by that name instead, which the caller reads with get.
+     * @param instance
+     * @param name
+     * @return
+     */
+    PanzaFunction findMethod(PanzaInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) return (PanzaFunction)targets[i];
+        }
+
+        if (!megamorphic) {
+            int index = shape.indexOf(name.symbol);
+            if (index != -1) {
+                add(shape, index, null);
+                return null;
+            }
+
+            PanzaFunction method = instance.findMethod(name);
+            add(shape, -1, method);
+            return method;
+        }
+
+        if (shape.indexOf(name.symbol) != -1) return null;
+        return instance.findMethod(name);
+    }
+
+    /**
+     * Writes the field on the instance, adding the field if the instance doesn't have it yet.
+     * @param instance
+     * @param name
+     * @param value
+     */
+    void set(PanzaInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                if (targets[i] == null) {
+                    instance.fields[indexes[i]] = value;
+                } else {
+                    instance.addField((Shape)targets[i], value);
+                }
+                return;
+            }
+        }
+
+        if (megamorphic) {
+            instance.set(name, value);
+            return;
+        }
+
+        int index = shape.indexOf(name.symbol);
+        if (index != -1) {
+            add(shape, index, null);
+            instance.fields[index] = value;
+            return;
+        }
+
+        Shape next = shape.withField(name.symbol);
+        add(shape, next.size - 1, next);
+        instance.addField(next, value);
+    }
+
+    private void add(Shape shape, int index, Object target) {
+        if (size == MAX_ENTRIES) {
+            // Too many shapes go through here for caching to pay off.
+            megamorphic = true;
+            shapes = null;
+            indexes = null;
+            targets = null;
+            size = 0;
+            return;
+        }
+
+        if (shapes == null) {
+            shapes = new Shape[MAX_ENTRIES];
+            indexes = new int[MAX_ENTRIES];
+            targets = new Object[MAX_ENTRIES];
+        }
+        shapes[size] = shape;
+        indexes[size] = index;
+        targets[size] = target;
+        size++;
+    }
+}
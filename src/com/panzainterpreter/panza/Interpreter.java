@@ -4,8 +4,21 @@ import java.util.*;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    private Environment environment;
+
+    // Set by a return statement. Blocks and loops stop as soon as they see it, and the call being returned from takes
+    // the value and clears it, so returning never has to unwind the Java stack with an exception.
+    private boolean returning = false;
+    private Object returnValue = null;
+
+    // A call made in tail position is left here, rather than made, for the function returning to make in place of
+    // its own frame. This keeps the Java stack from growing with tail recursion.
+    PanzaFunction tailFunction = null;
+    PanzaInstance tailReceiver = null;
+    Object[] tailFrame = null;
+
+    // Counts calls and loop iterations to promote hot functions to faster engines, when tiered execution is on.
+    TierManager tiers = null;
 
     /**
      * Defines native functions
@@ -13,7 +26,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     Interpreter() {
         globals.define("clock", new PanzaCallable() {
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
@@ -27,7 +45,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         });
     }
 
-    void interpret(List<Stmt> statements) {
+    /**
+     * Runs top-level code. Its blocks keep their variables in a frame of the given size, which the Resolver works out.
+     * @param statements
+     * @param frameSize
+     */
+    void interpret(List<Stmt> statements, int frameSize) {
+        environment = new Environment(new Object[frameSize], Environment.NO_UPVALUES);
         try {
             for (Stmt statement: statements) {
                 execute(statement);
@@ -44,7 +68,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * @param object
      * @return
      */
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         // Hack. Work around Java adding ".0" to integer-valued doubles.
@@ -91,40 +115,56 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((PanzaInstance)object).set(expr.name, value);
+        expr.cache.set((PanzaInstance)object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        // Look up the superclass by finding 'super' in the proper environment.
-        int distance = locals.get(expr);
-        PanzaClass superclass = (PanzaClass)environment.getAt(distance, "super");
+        PanzaClass superclass = (PanzaClass)lookUpLocal(expr.depth, expr.slot, false);
 
-        // "this" is always one level nearer than "super"'s environment.
-        PanzaInstance object = (PanzaInstance)environment.getAt(distance - 1, "this");
+        return findSuperMethod(expr, superclass).bind(superReceiver(expr));
+    }
 
-        PanzaFunction method = superclass.findMethod(expr.method.lexeme);
+    /**
+     * Finds the method a super expression refers to, throwing a runtime error if the superclass doesn't have it.
+     * @param expr
+     * @param superclass
+     * @return
+     */
+    static PanzaFunction findSuperMethod(Expr.Super expr, PanzaClass superclass) {
+        PanzaFunction method = superclass.findMethod(expr.method.symbol);
 
         // Throw a runtime error if the method does not exist in the superclass
         if (method == null) {
             throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
         }
-        return method.bind(object);
+        return method;
+    }
+
+    /**
+     * Returns the instance a super expression is used on.
+     * @param expr
+     * @return
+     */
+    private PanzaInstance superReceiver(Expr.Super expr) {
+        return (PanzaInstance)lookUpLocal(expr.thisDepth, expr.thisSlot, false);
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpLocal(expr.depth, expr.slot, false);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            return !evaluateCondition(expr.right);
+        }
+
         Object right = evaluate(expr.right);
 
         switch (expr.operator.type) {
-            case BANG:
-                return !isTruthy(right);
             case MINUS:
                 checkNumberOperand(expr.operator, right);
                 return -(double)right;
@@ -134,47 +174,154 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    /**
+     * If the Resolver did not find the variable in a local scope then it must be a global. If this is the case, we
+     * look it up by its global number, directly from the global environment. Otherwise we have a local variable, which
+     * is either in the current frame or one the running function captured.
+     * @param expr
+     * @return
+     */
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        if (expr.depth != -1) {
+            return lookUpLocal(expr.depth, expr.slot, expr.boxed);
+        } else {
+            return globals.getGlobal(expr.slot, expr.name);
+        }
     }
 
     /**
-     * First looks up the resolved distance in the map. If the variable is not in the locals map then it must be a global.
-     * If this is the case, we look it up dynamically, directly from the global environment. If there was a distance
-     * then we have a local variable and we retrieve it from our locals environment.
-     * @param name
-     * @param expr
+     * Reads a local variable. Depth 0 is a slot of the current frame, and depth 1 one of the variables the running
+     * function captured.
+     * @param depth
+     * @param slot
+     * @param boxed Whether the variable is kept in a Cell
      * @return
      */
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpLocal(int depth, int slot, boolean boxed) {
+        Object value = depth == 0 ? environment.get(slot) : environment.getUpvalue(slot);
+        if (boxed) return ((Cell)value).value;
+        return value;
+    }
+
+    /**
+     * Defines a variable in its slot of the current frame, or as a global if it has no slot.
+     * @param name
+     * @param slot
+     * @param boxed Whether the variable is kept in a Cell, in which case each run of the declaration gets a new one
+     * @param value
+     */
+    private void define(Token name, int slot, boolean boxed, Object value) {
+        if (slot == -1) {
+            globals.defineGlobal(Environment.globalIndex(name.symbol), value);
         } else {
-            return globals.get(name);
+            environment.assign(slot, boxed ? new Cell(value) : value);
         }
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
+        if (stmt.osr != null) {
+            runCompiledLoop(stmt.osr);
+            return null;
+        }
+
+        if (stmt.counted && environment.get(stmt.counterSlot) instanceof Double) {
+            executeCountedLoop(stmt);
+            return null;
+        }
+
+        while (evaluateCondition(stmt.condition)) {
             execute(stmt.body);
+            if (returning) break;
+            if (tiers != null) {
+                ClosureCompiler.Expression compiled = tiers.backEdge(stmt, TierManager.INTERPRETED, environment);
+                if (compiled != null) {
+                    runCompiledLoop(compiled);
+                    break;
+                }
+            }
         }
         return null;
     }
 
-    private boolean isTruthy(Object object) {
+    /**
+     * Carries on running a loop in the code the TierManager compiled it into, on the current frame. A value other than
+     * LOOP_EXIT came from a return statement in the loop, and returns from the function as one run here would.
+     * @param compiled
+     */
+    private void runCompiledLoop(ClosureCompiler.Expression compiled) {
+        Object value = compiled.evaluate(environment);
+        if (value != TierManager.LOOP_EXIT) {
+            returning = true;
+            returnValue = value;
+        }
+    }
+
+    /**
+     * Runs a loop recognized by CountedLoop. The counter is kept in a double and written back to its slot for the body
+     * to read each iteration. The block holding the body and increment declares nothing, so its statements run in
+     * place, apart from the increment which is done here.
+     * @param stmt
+     */
+    private void executeCountedLoop(Stmt.While stmt) {
+        Expr.Binary condition = (Expr.Binary)stmt.condition;
+        List<Stmt> statements = ((Stmt.Block)stmt.body).statements;
+        int bodyCount = statements.size() - 1;
+
+        Environment frame = environment;
+        double counter = (double)frame.get(stmt.counterSlot);
+        for (;;) {
+            double bound;
+            try {
+                bound = evaluateNumber(condition.right);
+            } catch (UnexpectedValue unexpected) {
+                // Reports the error the comparison would.
+                binaryOperation(condition, counter, unexpected.value);
+                return;
+            }
+
+            if (!compare(condition.operator.type, counter, bound)) return;
+
+            for (int i = 0; i < bodyCount; i++) {
+                execute(statements.get(i));
+                if (returning) return;
+            }
+
+            counter += stmt.step;
+            frame.assign(stmt.counterSlot, counter);
+            if (tiers != null) {
+                ClosureCompiler.Expression compiled = tiers.backEdge(stmt, TierManager.INTERPRETED, frame);
+                if (compiled != null) {
+                    runCompiledLoop(compiled);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean compare(TokenType operator, double left, double right) {
+        switch (operator) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private Boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         // nil is only equal to nil
         if (a == null && b == null) return true;
         if (a == null) return false;
 
+        // A String never considers itself equal to a Rope, so ask the Rope.
+        if (b instanceof Rope) return b.equals(a);
         return a.equals(b);
     }
 
@@ -187,17 +334,138 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    /**
+     * Evaluates an expression that is expected to produce a number without boxing the intermediate results, so a
+     * chain of arithmetic only allocates for its final result. Binary nodes that have specialized for numbers take
+     * this path until they see otherwise, at which point they finish the operation on the generic path and turn
+     * generic.
+     * If the expression produces something other than a number it is thrown back to the caller in an UnexpectedValue.
+     * @param expr
+     * @return
+     */
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.specialization == Specialization.NUMBER && isArithmetic(binary.operator.type)) {
+                return evaluateArithmetic(binary);
+            }
+        } else if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            if (value instanceof Double) return (double)value;
+            throw new UnexpectedValue(value);
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type == TokenType.MINUS) {
+                try {
+                    return -evaluateNumber(unary.right);
+                } catch (UnexpectedValue unexpected) {
+                    checkNumberOperand(unary.operator, unexpected.value);
+                }
+            }
+        }
+
+        Object value = evaluate(expr);
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedValue(value);
+    }
+
+    private double evaluateArithmetic(Expr.Binary expr) {
+        double left;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedValue unexpected) {
+            expr.specialization = Specialization.GENERIC;
+            throw new UnexpectedValue(binaryOperation(expr, unexpected.value, evaluate(expr.right)));
+        }
+
+        double right;
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedValue unexpected) {
+            expr.specialization = Specialization.GENERIC;
+            throw new UnexpectedValue(binaryOperation(expr, left, unexpected.value));
+        }
+
+        switch (expr.operator.type) {
+            case MINUS: return left - right;
+            case PLUS: return left + right;
+            case SLASH: return left / right;
+            case STAR: return left * right;
+        }
+
+        //unreachable
+        throw new IllegalStateException();
     }
 
     /**
-     * Stores resolution data for a given variable in the locals hashMap
+     * Evaluates an expression for its truthiness only, as the conditions of if and while statements are. Comparisons
+     * are done on unboxed operands and logical operators never need to produce their operand values.
      * @param expr
-     * @param depth
+     * @return
      */
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private boolean evaluateCondition(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.specialization == Specialization.NUMBER && isComparison(binary.operator.type)) {
+                return evaluateComparison(binary);
+            }
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            if (logical.operator.type == TokenType.OR) {
+                return evaluateCondition(logical.left) || evaluateCondition(logical.right);
+            }
+            return evaluateCondition(logical.left) && evaluateCondition(logical.right);
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateCondition(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type == TokenType.BANG) return !evaluateCondition(unary.right);
+        }
+
+        return isTruthy(evaluate(expr));
+    }
+
+    private boolean evaluateComparison(Expr.Binary expr) {
+        double left;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedValue unexpected) {
+            expr.specialization = Specialization.GENERIC;
+            return (boolean)binaryOperation(expr, unexpected.value, evaluate(expr.right));
+        }
+
+        double right;
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedValue unexpected) {
+            expr.specialization = Specialization.GENERIC;
+            return (boolean)binaryOperation(expr, left, unexpected.value);
+        }
+
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+        }
+
+        //unreachable
+        throw new IllegalStateException();
+    }
+
+    private static boolean isArithmetic(TokenType type) {
+        return type == TokenType.MINUS || type == TokenType.PLUS || type == TokenType.SLASH || type == TokenType.STAR;
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.GREATER || type == TokenType.GREATER_EQUAL
+                || type == TokenType.LESS || type == TokenType.LESS_EQUAL;
+    }
+
+    private void execute(Stmt stmt) {
+        stmt.accept(this);
     }
 
     /**
@@ -210,18 +478,27 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Environment previous = this.environment;
         try {
             this.environment = environment;
-
-            for (Stmt statement: statements) {
-                execute(statement);
-            }
+            executeStatements(statements);
         } finally {
             this.environment = previous;
         }
     }
 
+    private void executeStatements(List<Stmt> statements) {
+        for (Stmt statement: statements) {
+            execute(statement);
+            if (returning) return;
+        }
+    }
+
+    /**
+     * A block's variables have slots in the frame of the function it is in, so it runs in the current Environment.
+     * @param stmt
+     * @return
+     */
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        executeStatements(stmt.statements);
         return null;
     }
 
@@ -241,29 +518,46 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        // Define the class
-        environment.define(stmt.name.lexeme, null);
-
-        // Create an environment in the enviroment chain the holds a reference to the superclass
+        // The methods capture the superclass from its slot, and the class too if they refer to it by name.
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment.assign(stmt.superSlot, superclass);
+        }
+        Cell cell = stmt.boxed ? declareCell(stmt.slot) : null;
+
+        // Start from a copy of the superclass's methods, which already includes everything it inherits, so finding a
+        // method on the new class is a single map lookup.
+        Map<Symbol, PanzaFunction> methods = new HashMap<>();
+        if (superclass != null) {
+            methods.putAll(((PanzaClass)superclass).methods);
         }
-        Map<String, PanzaFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            PanzaFunction function = new PanzaFunction(method, environment, method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            PanzaFunction function = new PanzaFunction(method, environment.capture(method.captures),
+                    method.name.symbol == Symbol.INIT);
+            methods.put(method.name.symbol, function);
         }
 
         PanzaClass klass = new PanzaClass(stmt.name.lexeme, (PanzaClass)superclass, methods);
 
-        if (superclass != null) {
-            environment = environment.enclosing;
+        // Define the class. Methods only look the name up once they are called, so this can wait until the class exists.
+        if (cell != null) {
+            cell.value = klass;
+        } else {
+            define(stmt.name, stmt.slot, false, klass);
         }
-        environment.assign(stmt.name, klass);
         return null;
     }
 
+    /**
+     * Puts an empty Cell in a slot, for a function or class that captures itself before it has been created.
+     * @param slot
+     * @return
+     */
+    private Cell declareCell(int slot) {
+        Cell cell = new Cell(null);
+        environment.assign(slot, cell);
+        return cell;
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
@@ -272,14 +566,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        PanzaFunction function = new PanzaFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+        Cell cell = stmt.boxed ? declareCell(stmt.slot) : null;
+        PanzaFunction function = new PanzaFunction(stmt, environment.capture(stmt.captures), false);
+        if (cell != null) {
+            cell.value = function;
+        } else {
+            define(stmt.name, stmt.slot, false, function);
+        }
         return null;
     }
 
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
+        if (evaluateCondition(stmt.condition)) {
             execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
             execute(stmt.elseBranch);
@@ -297,9 +596,27 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
+        if (stmt.tailCall) {
+            value = call((Expr.Call)stmt.value, true);
+        } else if (stmt.value != null) {
+            value = evaluate(stmt.value);
+        }
 
-        throw new Return(value);
+        returnValue = value;
+        returning = true;
+        return null;
+    }
+
+    /**
+     * Called once a function body has finished running. Returns the value of the return statement that ended it, or
+     * nil if it ran off the end, and clears the returning state.
+     * @return
+     */
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returning = false;
+        returnValue = null;
+        return value;
     }
 
     @Override
@@ -309,12 +626,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        define(stmt.name, stmt.slot, stmt.boxed, value);
         return null;
     }
 
     /**
-     * Looks up the variables scope distance. If not found, it's assumed to be global.
+     * Uses the variable's resolved depth. If it has none, it's assumed to be global and its slot is its global number.
+     * A captured variable that can be assigned is always in a Cell, so only a variable in the current frame is ever
+     * assigned directly.
      * @param expr
      * @return
      */
@@ -322,20 +641,69 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.boxed) {
+            Object cell = expr.depth == 0 ? environment.get(expr.slot) : environment.getUpvalue(expr.slot);
+            ((Cell)cell).value = value;
+        } else if (expr.depth != -1) {
+            environment.assign(expr.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            globals.assignGlobal(expr.slot, expr.name, value);
         }
         return value;
     }
 
+    /**
+     * Runs the operation the node has specialized for, as described in Specialization. The number specialization
+     * takes the unboxed path, which hands back the generically computed result in an UnexpectedValue if an operand
+     * turned out not to be a number.
+     * @param expr
+     * @return
+     */
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        switch (expr.specialization) {
+            case NUMBER:
+                try {
+                    if (isArithmetic(expr.operator.type)) return evaluateArithmetic(expr);
+                    return evaluateComparison(expr);
+                } catch (UnexpectedValue unexpected) {
+                    return unexpected.value;
+                }
+            case STRING: {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                if (Rope.isString(left) && Rope.isString(right)) return Rope.concat(left, right);
 
+                expr.specialization = Specialization.GENERIC;
+                return binaryOperation(expr, left, right);
+            }
+            case UNINITIALIZED: {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                expr.specialization = specialize(expr.operator.type, left, right);
+                return binaryOperation(expr, left, right);
+            }
+            default:
+                return binaryOperation(expr, evaluate(expr.left), evaluate(expr.right));
+        }
+    }
+
+    /**
+     * Picks the specialization for a binary expression from the first operands it sees.
+     * @param operator
+     * @param left
+     * @param right
+     * @return
+     */
+    private static Specialization specialize(TokenType operator, Object left, Object right) {
+        if ((isArithmetic(operator) || isComparison(operator)) && left instanceof Double && right instanceof Double) {
+            return Specialization.NUMBER;
+        }
+        if (operator == TokenType.PLUS && Rope.isString(left) && Rope.isString(right)) return Specialization.STRING;
+        return Specialization.GENERIC;
+    }
+
+    private Object binaryOperation(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case GREATER:
                 checkNumberOperands(expr.operator, left, right);
@@ -357,8 +725,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     return (double)left + (double)right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat(left, right);
                 }
 
                 throw new RuntimeError(expr.operator,
@@ -397,41 +765,165 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      */
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return call(expr, false);
+    }
+
+    /**
+     * Evaluates a call. A tail call to a Panza function isn't made here, it is left for the function being returned
+     * from to make once its own frame has finished.
+     * @param expr
+     * @param tail
+     * @return
+     */
+    private Object call(Expr.Call expr, boolean tail) {
+        // Calling a method straight off an instance or "super" doesn't need a bound method, the receiver is passed
+        // to the method directly.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof PanzaInstance)) {
+                throw new RuntimeError(get.name, "Only instances have properties.");
+            }
+
+            PanzaInstance instance = (PanzaInstance)object;
+            PanzaFunction method = get.cache.findMethod(instance, get.name);
+            if (method == null) {
+                // A field holding something callable.
+                return callValue(expr, get.cache.get(instance, get.name), tail);
+            }
+            return invoke(expr, method, instance, tail);
+        }
+
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            PanzaClass superclass = (PanzaClass)lookUpLocal(superExpr.depth, superExpr.slot, false);
+            PanzaFunction method = findSuperMethod(superExpr, superclass);
+            return invoke(expr, method, superReceiver(superExpr), tail);
+        }
+
+        return callValue(expr, evaluate(expr.callee), tail);
+    }
+
+    /**
+     * Evaluates the arguments and calls the callee, which must be a function or a class. Panza functions, and classes
+     * with an initializer, have their arguments evaluated straight into the new frame. Anything else gets them through
+     * the fixed arity entry points if there are few enough.
+     * @param expr
+     * @param callee
+     * @param tail
+     * @return
+     */
+    private Object callValue(Expr.Call expr, Object callee, boolean tail) {
+        if (callee instanceof PanzaFunction) {
+            PanzaFunction function = (PanzaFunction)callee;
+            return invoke(expr, function, function.receiver, tail);
+        }
+
+        if (callee instanceof PanzaClass && ((PanzaClass)callee).initializer != null) {
+            // The initializer returns the instance.
+            PanzaClass klass = (PanzaClass)callee;
+            return invoke(expr, klass.initializer, new PanzaInstance(klass), tail);
+        }
 
-        List<Object> arguments = new ArrayList<>();
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return checkCallable(expr, callee, 0).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return checkCallable(expr, callee, 1).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return checkCallable(expr, callee, 2).call2(this, a, b);
+            }
+            default: {
+                Object[] values = evaluateArguments(expr);
+                return checkCallable(expr, callee, values.length).call(this, values);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the arguments into a new frame for the function and calls it with the given receiver.
+     * @param expr
+     * @param function
+     * @param receiver
+     * @param tail
+     * @return
+     */
+    private Object invoke(Expr.Call expr, PanzaFunction function, PanzaInstance receiver, boolean tail) {
+        if (expr.arguments.size() != function.arity()) {
+            // The arguments are still evaluated before the error is reported, just like for any other call.
+            evaluateArguments(expr);
+            checkArity(expr, function, expr.arguments.size());
+        }
+
+        Object[] frame = function.newFrame(receiver);
+        int slot = receiver == null ? 0 : 1;
         for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+            frame[slot++] = evaluate(argument);
+        }
+
+        if (tail) return scheduleTailCall(function, receiver, frame);
+        return function.run(this, receiver, frame);
+    }
+
+    private Object scheduleTailCall(PanzaFunction function, PanzaInstance receiver, Object[] frame) {
+        tailFunction = function;
+        tailReceiver = receiver;
+        tailFrame = frame;
+        return null;
+    }
+
+    private Object[] evaluateArguments(Expr.Call expr) {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
         }
+        return arguments;
+    }
 
-        // Check that a function or class is being called
+    /**
+     * Checks that a function or class is being called with the right number of arguments.
+     * @param expr
+     * @param callee
+     * @param argCount
+     * @return
+     */
+    static PanzaCallable checkCallable(Expr.Call expr, Object callee, int argCount) {
         if (!(callee instanceof PanzaCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
 
         PanzaCallable function = (PanzaCallable)callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+        checkArity(expr, function, argCount);
+        return function;
+    }
+
+    static void checkArity(Expr.Call expr, PanzaCallable function, int argCount) {
+        if (argCount != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + argCount + ".");
         }
-        return function.call(this, arguments);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof PanzaInstance) {
-            return ((PanzaInstance)object).get(expr.name);
+            return expr.cache.get((PanzaInstance)object, expr.name);
         }
 
         throw new RuntimeError(expr.name, "Only instances have properties.");
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers");
     }
@@ -0,0 +1,693 @@
+package com.panzainterpreter.panza;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.panzainterpreter.panza.ClassWriter.*;
+
+/**
+ * Compiles the body of a hot function into a JVM class, so that HotSpot can compile the Panza code itself to machine
+ * code rather than just the interpreter running it. This is the top tier of the TierManager, which compiles a
+ * function here once it is hot, and PanzaFunction runs the compiled body from then on.
+ *
+ * The generated class is a hidden class, defined in this package with MethodHandles.Lookup.defineHiddenClass, and
+ * extends Compiled. Each variable of the function's frame becomes a JVM local variable, and control flow becomes JVM
+ * branches, but values are still boxed Objects and the operations on them are calls to the static helpers at the end
+ * of this class, which HotSpot inlines. The Tokens and nodes the helpers need to report errors, and the values of
+ * literals, are kept in an array of constants the generated code indexes into.
+ *
+ * A single loop can be compiled too, for the TierManager to switch a running loop over to, as described there. The
+ * code for a loop writes the variables back into the frame when the loop finishes, and returns LOOP_EXIT rather than
+ * a value unless a return statement in the loop ended the function.
+ *
+ * Only code that doesn't capture any variables and doesn't declare functions or classes or use "super" is
+ * compiled. Anything else is reported as Unsupported and the function stays with the engine that was running it.
+ */
+public class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String PACKAGE = "com/panzainterpreter/panza/";
+    private static final String SELF = PACKAGE + "JitCompiler";
+    private static final String COMPILED = PACKAGE + "JitCompiler$Compiled";
+    private static final String INTERPRETER = PACKAGE + "Interpreter";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "L" + PACKAGE + "Token;";
+    private static final String INSTANCE = "L" + PACKAGE + "PanzaInstance;";
+    private static final String FUNCTION = "L" + PACKAGE + "PanzaFunction;";
+    private static final String CALL = "L" + PACKAGE + "Expr$Call;";
+    private static final String GET = "L" + PACKAGE + "Expr$Get;";
+    private static final String SET = "L" + PACKAGE + "Expr$Set;";
+
+    // The JVM local variables of the generated run method. The frame's slots follow the fixed ones.
+    private static final int THIS_LOCAL = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int FRAME_LOCAL = 2;
+    private static final int CONSTANTS_LOCAL = 3;
+    private static final int FIRST_SLOT_LOCAL = 4;
+
+    /**
+     * The code generated for a function or loop. The hidden class overrides run.
+     */
+    abstract static class Compiled {
+        final Object[] constants;
+
+        Compiled(Object[] constants) {
+            this.constants = constants;
+        }
+
+        /**
+         * Runs the function body in a frame that already holds the receiver and arguments, returning its value. For
+         * a loop the frame is the one the loop was running in.
+         * @param interpreter
+         * @param frame
+         * @return
+         */
+        abstract Object run(Interpreter interpreter, Object[] frame);
+    }
+
+    /**
+     * Thrown when the function uses something the compiler can't compile.
+     */
+    static class Unsupported extends RuntimeException {
+        Unsupported(String what) {
+            super(what, null, false, false);
+        }
+    }
+
+    private final ClassWriter writer = new ClassWriter(PACKAGE + "JitFunction", COMPILED);
+    private final List<Object> constants = new ArrayList<>();
+    private ClassWriter.Code code;
+
+    private JitCompiler() {
+    }
+
+    /**
+     * Compiles a function body.
+     * @param function
+     * @return
+     * @throws Unsupported if it uses anything that isn't supported
+     */
+    static Compiled compile(Stmt.Function function) {
+        if (function.captures.length > 0 || function.boxedParams.length > 0) {
+            throw new Unsupported("captured variable");
+        }
+
+        try {
+            return new JitCompiler().define(function.body, function.frameSize, false);
+        } catch (ClassWriter.TooLarge tooLarge) {
+            throw new Unsupported(tooLarge.getMessage());
+        }
+    }
+
+    /**
+     * Compiles a loop to run on a frame with the given number of slots.
+     * @param loop
+     * @param frameSize
+     * @return
+     * @throws Unsupported if it uses anything that isn't supported
+     */
+    static Compiled compileLoop(Stmt.While loop, int frameSize) {
+        try {
+            return new JitCompiler().define(Collections.singletonList(loop), frameSize, true);
+        } catch (ClassWriter.TooLarge tooLarge) {
+            throw new Unsupported(tooLarge.getMessage());
+        }
+    }
+
+    private Compiled define(List<Stmt> statements, int frameSize, boolean loop) {
+        ClassWriter.Code constructor = writer.method(ACC_PUBLIC, "<init>", "([" + OBJECT + ")V", 2);
+        constructor.aload(0);
+        constructor.aload(1);
+        constructor.ref(INVOKESPECIAL, writer.methodRef(COMPILED, "<init>", "([" + OBJECT + ")V"), -2);
+        constructor.op(RETURN, 0);
+        constructor.end();
+
+        code = writer.method(ACC_PUBLIC, "run", "(L" + INTERPRETER + ";[" + OBJECT + ")" + OBJECT,
+                FIRST_SLOT_LOCAL + frameSize);
+        code.aload(THIS_LOCAL);
+        code.ref(GETFIELD, writer.fieldRef(COMPILED, "constants", "[" + OBJECT), 0);
+        code.astore(CONSTANTS_LOCAL);
+
+        // Every slot is copied out of the frame, the receiver and parameters along with the slots that are still nil.
+        for (int slot = 0; slot < frameSize; slot++) {
+            code.aload(FRAME_LOCAL);
+            code.pushInt(slot);
+            code.op(AALOAD, -1);
+            code.astore(FIRST_SLOT_LOCAL + slot);
+        }
+
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+
+        if (loop) {
+            for (int slot = 0; slot < frameSize; slot++) {
+                code.aload(FRAME_LOCAL);
+                code.pushInt(slot);
+                code.aload(FIRST_SLOT_LOCAL + slot);
+                code.op(AASTORE, -3);
+            }
+            code.ref(GETSTATIC, writer.fieldRef(PACKAGE + "TierManager", "LOOP_EXIT", OBJECT), 1);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(ARETURN, -1);
+        code.end();
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(), true);
+            MethodHandle constructorHandle = lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class, Object[].class));
+            return (Compiled)constructorHandle.invoke(constants.toArray());
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to define compiled code", e);
+        }
+    }
+
+    // Loading values.
+
+    /**
+     * Pushes an entry of the constants array, adding the value to it.
+     * @param value
+     * @param type The internal name of the class to cast the value to, or null to leave it as an Object
+     */
+    private void constant(Object value, String type) {
+        code.aload(CONSTANTS_LOCAL);
+        code.pushInt(constants.size());
+        code.op(AALOAD, -1);
+        constants.add(value);
+        if (type != null) code.ref(CHECKCAST, writer.classRef(type), 0);
+    }
+
+    private void token(Token token) {
+        constant(token, PACKAGE + "Token");
+    }
+
+    /**
+     * Calls one of the helpers at the end of this class.
+     * @param name
+     * @param descriptor
+     * @param stackChange
+     */
+    private void helper(String name, String descriptor, int stackChange) {
+        code.ref(INVOKESTATIC, writer.methodRef(SELF, name, descriptor), stackChange);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    /**
+     * Returns the JVM local holding a slot of the frame, for variables in the running function's own frame that
+     * aren't kept in a Cell. Anything else is unsupported.
+     * @param depth
+     * @param slot
+     * @param boxed
+     * @return
+     */
+    private static int local(int depth, int slot, boolean boxed) {
+        if (depth != 0 || boxed) throw new Unsupported("captured variable");
+        return FIRST_SLOT_LOCAL + slot;
+    }
+
+    /**
+     * Compiles an expression whose value is only used for its truthiness, jumping to the label if it is falsey.
+     * Comparisons jump on their result directly, without boxing it.
+     * @param expr
+     * @param ifFalse
+     */
+    private void jumpIfFalse(Expr expr, ClassWriter.Label ifFalse) {
+        if (expr instanceof Expr.Grouping) {
+            jumpIfFalse(((Expr.Grouping)expr).expression, ifFalse);
+            return;
+        }
+
+        if (expr instanceof Expr.Logical && ((Expr.Logical)expr).operator.type == TokenType.AND) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            jumpIfFalse(logical.left, ifFalse);
+            jumpIfFalse(logical.right, ifFalse);
+            return;
+        }
+
+        if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+            compile(((Expr.Unary)expr).right);
+            code.ref(INVOKESTATIC, writer.methodRef(INTERPRETER, "isTruthy", "(" + OBJECT + ")Z"), 0);
+            code.branch(IFNE, ifFalse);
+            return;
+        }
+
+        if (expr instanceof Expr.Binary && compileTest((Expr.Binary)expr)) {
+            code.branch(IFEQ, ifFalse);
+            return;
+        }
+
+        compile(expr);
+        code.ref(INVOKESTATIC, writer.methodRef(INTERPRETER, "isTruthy", "(" + OBJECT + ")Z"), 0);
+        code.branch(IFEQ, ifFalse);
+    }
+
+    /**
+     * Compiles a comparison or equality test so that it leaves a JVM boolean on the stack. Returns false, having
+     * compiled nothing, for the other operators.
+     * @param expr
+     * @return
+     */
+    private boolean compileTest(Expr.Binary expr) {
+        String name;
+        switch (expr.operator.type) {
+            case GREATER: name = "greater"; break;
+            case GREATER_EQUAL: name = "greaterEqual"; break;
+            case LESS: name = "less"; break;
+            case LESS_EQUAL: name = "lessEqual"; break;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                compile(expr.left);
+                compile(expr.right);
+                code.ref(INVOKESTATIC, writer.methodRef(INTERPRETER, "isEqual", "(" + OBJECT + OBJECT + ")Z"), -1);
+                if (expr.operator.type == TokenType.BANG_EQUAL) helper("not", "(Z)Z", 0);
+                return true;
+            default: return false;
+        }
+
+        compile(expr.left);
+        compile(expr.right);
+        token(expr.operator);
+        helper(name, "(" + OBJECT + OBJECT + TOKEN + ")Z", -2);
+        return true;
+    }
+
+    private void boxBoolean() {
+        code.ref(INVOKESTATIC, writer.methodRef("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;"), 0);
+    }
+
+    // Statements. Each leaves the operand stack as it found it.
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported("class declaration");
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported("function declaration");
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        ClassWriter.Label elseBranch = new ClassWriter.Label();
+        jumpIfFalse(stmt.condition, elseBranch);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch == null) {
+            code.place(elseBranch);
+            return null;
+        }
+
+        ClassWriter.Label end = new ClassWriter.Label();
+        code.branch(GOTO, end);
+        code.place(elseBranch);
+        stmt.elseBranch.accept(this);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        helper("print", "(" + OBJECT + ")V", -1);
+        return null;
+    }
+
+    /**
+     * A tail call passes true to the call helper, which leaves the call for PanzaFunction to make after this frame
+     * has returned, as the interpreter does.
+     * @param stmt
+     * @return
+     */
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) {
+            compileCall((Expr.Call)stmt.value, true);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot == -1) throw new Unsupported("global declaration");
+
+        int local = local(0, stmt.slot, stmt.boxed);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.astore(local);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        ClassWriter.Label start = new ClassWriter.Label();
+        ClassWriter.Label end = new ClassWriter.Label();
+        code.place(start);
+        jumpIfFalse(stmt.condition, end);
+        stmt.body.accept(this);
+        code.branch(GOTO, start);
+        code.place(end);
+        return null;
+    }
+
+    // Expressions. Each pushes its value.
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        code.op(DUP, 1);
+        if (expr.depth == -1) {
+            code.aload(INTERPRETER_LOCAL);
+            code.pushInt(expr.slot);
+            token(expr.name);
+            helper("assignGlobal", "(" + OBJECT + "L" + INTERPRETER + ";I" + TOKEN + ")V", -4);
+        } else {
+            code.astore(local(expr.depth, expr.slot, expr.boxed));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (compileTest(expr)) {
+            boxBoolean();
+            return null;
+        }
+
+        String name;
+        switch (expr.operator.type) {
+            case PLUS: name = "add"; break;
+            case MINUS: name = "subtract"; break;
+            case STAR: name = "multiply"; break;
+            case SLASH: name = "divide"; break;
+            default: throw new Unsupported("operator " + expr.operator.lexeme);
+        }
+        compile(expr.left);
+        compile(expr.right);
+        token(expr.operator);
+        helper(name, "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compileCall(expr, false);
+        return null;
+    }
+
+    /**
+     * Compiles a call. A method called straight off an instance is found before the arguments are evaluated, and
+     * passed to the helper along with the instance, so no bound method is made.
+     * @param expr
+     * @param tail
+     */
+    private void compileCall(Expr.Call expr, boolean tail) {
+        if (expr.callee instanceof Expr.Super) throw new Unsupported("super call");
+
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            constant(get, PACKAGE + "Expr$Get");
+            helper("propertyOwner", "(" + OBJECT + GET + ")" + INSTANCE, -1);
+            // The instance, the method or null, and the field called instead if there is no method.
+            code.op(DUP, 1);
+            constant(get, PACKAGE + "Expr$Get");
+            helper("findMethod", "(" + INSTANCE + GET + ")" + FUNCTION, -1);
+            code.op(DUP2, 2);
+            constant(get, PACKAGE + "Expr$Get");
+            helper("fieldUnlessMethod", "(" + INSTANCE + FUNCTION + GET + ")" + OBJECT, -2);
+            compileArguments(expr);
+            code.aload(INTERPRETER_LOCAL);
+            constant(expr, PACKAGE + "Expr$Call");
+            code.pushInt(tail ? 1 : 0);
+            helper("invokeMethod", "(" + INSTANCE + FUNCTION + OBJECT + "[" + OBJECT + "L" + INTERPRETER + ";"
+                    + CALL + "Z)" + OBJECT, -6);
+            return;
+        }
+
+        compile(expr.callee);
+        compileArguments(expr);
+        code.aload(INTERPRETER_LOCAL);
+        constant(expr, PACKAGE + "Expr$Call");
+        code.pushInt(tail ? 1 : 0);
+        helper("call", "(" + OBJECT + "[" + OBJECT + "L" + INTERPRETER + ";" + CALL + "Z)" + OBJECT, -4);
+    }
+
+    private void compileArguments(Expr.Call expr) {
+        code.pushInt(expr.arguments.size());
+        code.ref(ANEWARRAY, writer.classRef("java/lang/Object"), 0);
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            code.op(DUP, 1);
+            code.pushInt(i);
+            compile(expr.arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        constant(expr, PACKAGE + "Expr$Get");
+        helper("getProperty", "(" + OBJECT + GET + ")" + OBJECT, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else {
+            constant(expr.value, null);
+        }
+        return null;
+    }
+
+    /**
+     * Leaves the left operand as the value when it decides the result, and otherwise replaces it with the right one.
+     * @param expr
+     * @return
+     */
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        ClassWriter.Label end = new ClassWriter.Label();
+        compile(expr.left);
+        code.op(DUP, 1);
+        code.ref(INVOKESTATIC, writer.methodRef(INTERPRETER, "isTruthy", "(" + OBJECT + ")Z"), 0);
+        code.branch(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        code.op(POP, -1);
+        compile(expr.right);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        constant(expr, PACKAGE + "Expr$Set");
+        helper("fieldOwner", "(" + OBJECT + SET + ")" + INSTANCE, -1);
+        compile(expr.value);
+        constant(expr, PACKAGE + "Expr$Set");
+        helper("setProperty", "(" + INSTANCE + OBJECT + SET + ")" + OBJECT, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        throw new Unsupported("super");
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        code.aload(local(expr.depth, expr.slot, false));
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        if (expr.operator.type == TokenType.BANG) {
+            code.ref(INVOKESTATIC, writer.methodRef(INTERPRETER, "isTruthy", "(" + OBJECT + ")Z"), 0);
+            helper("not", "(Z)Z", 0);
+            boxBoolean();
+        } else {
+            token(expr.operator);
+            helper("negate", "(" + OBJECT + TOKEN + ")" + OBJECT, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == -1) {
+            code.aload(INTERPRETER_LOCAL);
+            code.pushInt(expr.slot);
+            token(expr.name);
+            helper("getGlobal", "(L" + INTERPRETER + ";I" + TOKEN + ")" + OBJECT, -2);
+        } else {
+            code.aload(local(expr.depth, expr.slot, expr.boxed));
+        }
+        return null;
+    }
+
+    // The helpers the generated code calls. They do what the interpreter does for the same nodes.
+
+    static boolean not(boolean value) {
+        return !value;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) return (double)left + (double)right;
+        if (Rope.isString(left) && Rope.isString(right)) return Rope.concat(left, right);
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left / (double)right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static Object negate(Object right, Token operator) {
+        Interpreter.checkNumberOperand(operator, right);
+        return -(double)right;
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static Object getGlobal(Interpreter interpreter, int global, Token name) {
+        return interpreter.globals.getGlobal(global, name);
+    }
+
+    static void assignGlobal(Object value, Interpreter interpreter, int global, Token name) {
+        interpreter.globals.assignGlobal(global, name, value);
+    }
+
+    static Object getProperty(Object object, Expr.Get expr) {
+        return expr.cache.get(propertyOwner(object, expr), expr.name);
+    }
+
+    static PanzaInstance propertyOwner(Object object, Expr.Get expr) {
+        if (object instanceof PanzaInstance) return (PanzaInstance)object;
+        throw new RuntimeError(expr.name, "Only instances have properties.");
+    }
+
+    static PanzaInstance fieldOwner(Object object, Expr.Set expr) {
+        if (object instanceof PanzaInstance) return (PanzaInstance)object;
+        throw new RuntimeError(expr.name, "Only instance have fields");
+    }
+
+    static Object setProperty(PanzaInstance instance, Object value, Expr.Set expr) {
+        expr.cache.set(instance, expr.name, value);
+        return value;
+    }
+
+    static PanzaFunction findMethod(PanzaInstance instance, Expr.Get expr) {
+        return expr.cache.findMethod(instance, expr.name);
+    }
+
+    static Object fieldUnlessMethod(PanzaInstance instance, PanzaFunction method, Expr.Get expr) {
+        if (method != null) return null;
+        return expr.cache.get(instance, expr.name);
+    }
+
+    static Object invokeMethod(PanzaInstance instance, PanzaFunction method, Object field, Object[] arguments,
+                               Interpreter interpreter, Expr.Call expr, boolean tail) {
+        if (method == null) return call(field, arguments, interpreter, expr, tail);
+        return invoke(interpreter, expr, method, instance, arguments, tail);
+    }
+
+    static Object call(Object callee, Object[] arguments, Interpreter interpreter, Expr.Call expr, boolean tail) {
+        if (callee instanceof PanzaFunction) {
+            PanzaFunction function = (PanzaFunction)callee;
+            return invoke(interpreter, expr, function, function.receiver, arguments, tail);
+        }
+
+        if (callee instanceof PanzaClass && ((PanzaClass)callee).initializer != null) {
+            PanzaClass klass = (PanzaClass)callee;
+            return invoke(interpreter, expr, klass.initializer, new PanzaInstance(klass), arguments, tail);
+        }
+
+        return Interpreter.checkCallable(expr, callee, arguments.length).call(interpreter, arguments);
+    }
+
+    private static Object invoke(Interpreter interpreter, Expr.Call expr, PanzaFunction function,
+                                 PanzaInstance receiver, Object[] arguments, boolean tail) {
+        Interpreter.checkArity(expr, function, arguments.length);
+        Object[] frame = function.newFrame(receiver);
+        System.arraycopy(arguments, 0, frame, receiver == null ? 0 : 1, arguments.length);
+
+        if (tail) {
+            interpreter.tailFunction = function;
+            interpreter.tailReceiver = receiver;
+            interpreter.tailFrame = frame;
+            return null;
+        }
+        return function.run(interpreter, receiver, frame);
+    }
+}
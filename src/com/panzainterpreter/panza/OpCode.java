@@ -0,0 +1,49 @@
+package com.panzainterpreter.panza;
+
+/**
+ * The instruction set of the bytecode VM. Every instruction is a single opcode byte in a Chunk, optionally followed
+ * by operand bytes. The comment next to each opcode lists its operands.
+ */
+public final class OpCode {
+    static final byte CONSTANT      = 0;  // u16 constant index
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte GET_LOCAL     = 5;  // u8 stack slot
+    static final byte SET_LOCAL     = 6;  // u8 stack slot
+    static final byte GET_GLOBAL    = 7;  // u16 global number
+    static final byte DEFINE_GLOBAL = 8;  // u16 global number
+    static final byte SET_GLOBAL    = 9;  // u16 global number
+    static final byte GET_UPVALUE   = 10; // u8 upvalue index
+    static final byte SET_UPVALUE   = 11; // u8 upvalue index
+    static final byte GET_PROPERTY  = 12; // u16 name constant
+    static final byte SET_PROPERTY  = 13; // u16 name constant
+    static final byte GET_SUPER     = 14; // u16 name constant
+    static final byte EQUAL         = 15;
+    static final byte GREATER       = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS          = 18;
+    static final byte LESS_EQUAL    = 19;
+    static final byte ADD           = 20;
+    static final byte SUBTRACT      = 21;
+    static final byte MULTIPLY      = 22;
+    static final byte DIVIDE        = 23;
+    static final byte NOT           = 24;
+    static final byte NEGATE        = 25;
+    static final byte PRINT         = 26;
+    static final byte JUMP          = 27; // u16 forward offset
+    static final byte JUMP_IF_FALSE = 28; // u16 forward offset
+    static final byte LOOP          = 29; // u16 backward offset
+    static final byte CALL          = 30; // u8 argument count
+    static final byte INVOKE        = 31; // u16 name constant, u8 argument count
+    static final byte SUPER_INVOKE  = 32; // u16 name constant, u8 argument count
+    static final byte CLOSURE       = 33; // u16 function constant, then (u8 isLocal, u8 index) per upvalue
+    static final byte CLOSE_UPVALUE = 34;
+    static final byte RETURN        = 35;
+    static final byte CLASS         = 36; // u16 name constant
+    static final byte INHERIT       = 37;
+    static final byte METHOD        = 38; // u16 name constant
+
+    private OpCode() {}
+}
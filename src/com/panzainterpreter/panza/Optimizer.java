@@ -0,0 +1,332 @@
+package com.panzainterpreter.panza;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a resolved program before it is run. Arithmetic, comparisons, string concatenation and the unary
+ * operators are folded when their operands are literals, logical operators and if and while statements with a literal
+ * condition are reduced to the part that would run, and local variables that are never assigned after being
+ * initialized with a literal are replaced by that literal wherever they are read.
+ *
+ * Anything that would be a runtime error, like adding a number to a string, is left alone so the error still happens
+ * at the same place. Nodes are only rebuilt when something inside them changed, and since rebuilt nodes have lost what
+ * the Resolver recorded on them the program has to be resolved again afterwards.
+ */
+public class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    // The literal each never assigned local variable was initialized with, keyed by its declaration.
+    private final Map<Stmt.Var, Expr.Literal> constants = new HashMap<>();
+
+    // The number of statements in the branches and loops dropped because their condition is a literal, counting the
+    // statements nested inside them.
+    int removed = 0;
+
+    /**
+     * Optimizes a list of statements. Statements that turn out to do nothing are left out of the returned list.
+     * @param statements
+     * @return
+     */
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt result = statement.accept(this);
+            if (result != null) optimized.add(result);
+            if (result != statement) changed = true;
+        }
+
+        return changed ? optimized : statements;
+    }
+
+    /**
+     * Optimizes a statement that has to stay a statement, such as the body of a loop. If nothing is left of it, it is
+     * replaced with an empty block.
+     * @param stmt
+     * @return
+     */
+    private Stmt optimizeBody(Stmt stmt) {
+        Stmt result = stmt.accept(this);
+        if (result == null) return new Stmt.Block(new ArrayList<>());
+        return result;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private List<Expr> optimizeAll(List<Expr> exprs) {
+        List<Expr> optimized = new ArrayList<>(exprs.size());
+        boolean changed = false;
+        for (Expr expr : exprs) {
+            Expr result = optimize(expr);
+            optimized.add(result);
+            if (result != expr) changed = true;
+        }
+
+        return changed ? optimized : exprs;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function result = (Stmt.Function)method.accept(this);
+            methods.add(result);
+            if (result != method) changed = true;
+        }
+
+        if (!changed) return stmt;
+        return new Stmt.Class(stmt.name, stmt.superclass, methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = optimize(stmt.body);
+        if (body == stmt.body) return stmt;
+        return new Stmt.Function(stmt.name, stmt.params, body);
+    }
+
+    /**
+     * An if statement with a literal condition is replaced by the branch that would be taken. Branches are never
+     * declarations, so this can't move a variable into a different scope.
+     * @param stmt
+     * @return
+     */
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+                if (stmt.elseBranch != null) removed += DeadCodeEliminator.count(stmt.elseBranch);
+                return stmt.thenBranch.accept(this);
+            }
+            if (stmt.elseBranch != null) {
+                removed += DeadCodeEliminator.count(stmt.thenBranch);
+                return stmt.elseBranch.accept(this);
+            }
+            removed += DeadCodeEliminator.count(stmt);
+            return null;
+        }
+
+        Stmt thenBranch = optimizeBody(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimizeBody(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    /**
+     * Remembers the value of a variable initialized with a literal that is never assigned again. Only local variables
+     * are ever looked up, a global can be read before it is defined or redefined later.
+     * @param stmt
+     * @return
+     */
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+
+        if (!stmt.assigned) {
+            if (initializer == null) {
+                constants.put(stmt, new Expr.Literal(null));
+            } else if (initializer instanceof Expr.Literal) {
+                constants.put(stmt, (Expr.Literal)initializer);
+            }
+        }
+
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            removed += DeadCodeEliminator.count(stmt);
+            return null;
+        }
+
+        Stmt body = optimizeBody(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object folded = fold(expr.operator.type, ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+            if (folded != null) return new Expr.Literal(folded);
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    /**
+     * Works out the result of a binary operator on two literal values, or returns null if the operation can't be
+     * done ahead of time because it would be a runtime error.
+     * @param operator
+     * @param left
+     * @param right
+     * @return
+     */
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+            case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+        }
+
+        if (operator == TokenType.PLUS && left instanceof String && right instanceof String) {
+            return (String)left + (String)right;
+        }
+
+        if (!(left instanceof Double && right instanceof Double)) return null;
+
+        double a = (double)left;
+        double b = (double)right;
+        switch (operator) {
+            case PLUS: return a + b;
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH: return a / b;
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    /**
+     * With a literal on the left, "or" and "and" either produce that literal or evaluate to their right operand.
+     * @param expr
+     * @return
+     */
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (value instanceof Double) return new Expr.Literal(-(double)value);
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (expr.declaration != null) {
+            Expr.Literal constant = constants.get(expr.declaration);
+            if (constant != null) return new Expr.Literal(constant.value);
+        }
+        return expr;
+    }
+}
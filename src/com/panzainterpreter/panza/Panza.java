@@ -6,49 +6,175 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static com.panzainterpreter.panza.TokenType.EOF;
 
 public class Panza {
     private static final Interpreter interpreter = new Interpreter();
+    private static final VM vm = new VM();
+
+    // Run scripts on the bytecode VM instead of the tree-walking interpreter. This isn't the fast engine: a loop runs
+    // slower on it than on the interpreter, which specializes counted loops, and much slower than with --tiered. The VM
+    // is there because it keeps every call frame on the heap, which is what lets a script be paused and resumed for
+    // --slice.
+    static boolean useVm = false;
+
+    // Compile scripts into Java lambdas with the ClosureCompiler instead of walking the tree.
+    static boolean useClosures = false;
+
+    // Report what the optimization passes did on stderr.
+    static boolean showStats = false;
+
+    // The number of slots the top-level code of the program prepare() last returned needs for its blocks.
+    private static int scriptSize = 0;
 
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlux [script]");
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (arguments.remove("--vm")) useVm = true;
+        if (arguments.remove("--compile")) useClosures = true;
+        if (arguments.remove("--stats")) showStats = true;
+
+        // Tiered execution promotes hot functions to faster engines, as described in TierManager.
+        boolean tiered = arguments.remove("--tiered");
+        boolean logTiers = arguments.remove("--log-tiers");
+        Integer closureThreshold = intOption(arguments, "--closure-threshold=", 100);
+        Integer jitThreshold = intOption(arguments, "--jit-threshold=", 1000);
+        Integer loopThreshold = intOption(arguments, "--loop-threshold=", 10000);
+
+        // Time-slicing runs several scripts on the VM in turns, as described in VmScheduler.
+        boolean traceSlices = arguments.remove("--trace-slices");
+        Integer slice = intOption(arguments, "--slice=", 0);
+
+        if (slice != null && slice > 0 && !arguments.isEmpty()) {
+            runSliced(arguments, slice, traceSlices);
+            return;
+        }
+
+        if (arguments.size() > 1 || closureThreshold == null || jitThreshold == null || loopThreshold == null
+                || slice == null || slice > 0) {
+            System.out.println("Usage: jlux [--vm | --compile] [--tiered [--log-tiers] [--closure-threshold=N]"
+                    + " [--jit-threshold=N] [--loop-threshold=N]] [--stats] [script]");
+            System.out.println("       jlux --slice=N [--trace-slices] [--stats] script...");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        }
+
+        if (tiered) {
+            interpreter.tiers = new TierManager(interpreter, closureThreshold, jitThreshold, loopThreshold, logTiers);
+        }
+
+        if (arguments.size() == 1) {
+            runFile(arguments.get(0));
         } else {
             runPrompt();
         }
     }
 
+    /**
+     * Takes an option of the form name=N out of the arguments. Returns the default if it isn't there, and null if its
+     * value isn't a positive number.
+     * @param arguments
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    private static Integer intOption(List<String> arguments, String name, int defaultValue) {
+        for (String argument : arguments) {
+            if (!argument.startsWith(name)) continue;
+
+            arguments.remove(argument);
+            try {
+                int value = Integer.parseInt(argument.substring(name.length()));
+                return value > 0 ? value : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return defaultValue;
+    }
+
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        run(new String(bytes, Charset.defaultCharset()), true);
 
         // Indicate an error in the exit code.
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
+    /**
+     * Compiles every script for the VM and then runs them together, taking turns of the given number of backward jumps
+     * and calls. Nothing runs if any of them fails to compile.
+     * @param paths
+     * @param slice
+     * @param trace Whether to report the state of each script when it is paused
+     * @throws IOException
+     */
+    private static void runSliced(List<String> paths, int slice, boolean trace) throws IOException {
+        VmScheduler scheduler = new VmScheduler(slice, trace);
+        for (String path : paths) {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            List<Stmt> statements = prepare(new String(bytes, Charset.defaultCharset()), true);
+            if (statements == null) continue;
+
+            VmFunction script = new Compiler().compile(statements);
+            if (!hadError) scheduler.add(path, script);
+        }
+        if (hadError) System.exit(65);
+
+        scheduler.run();
+        if (hadRuntimeError) System.exit(70);
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
         for (;;) {
             System.out.print("> ");
-            run(reader.readLine());
+            run(reader.readLine(), false);
 
             hadError = false;
         }
     }
 
-    private static void run(String source) {
+    /**
+     * Runs some source code. The whole program is given when running a file, while the REPL runs a line at a time and
+     * later lines can still refer to anything defined earlier.
+     * @param source
+     * @param wholeProgram
+     */
+    private static void run(String source, boolean wholeProgram) {
+        List<Stmt> statements = prepare(source, wholeProgram);
+        if (statements == null) return;
+
+        if (useVm) {
+            VmFunction script = new Compiler().compile(statements);
+
+            // Stop if there was a compile error
+            if (hadError) return;
+
+            vm.interpret(script);
+        } else if (useClosures) {
+            new ClosureCompiler(interpreter).run(statements, scriptSize);
+        } else {
+            interpreter.interpret(statements, scriptSize);
+        }
+    }
+
+    /**
+     * Parses, resolves and optimizes some source code, ready for any of the engines to run. Returns null if there was
+     * an error. The number of slots the top-level code needs is left in scriptSize.
+     * @param source
+     * @param wholeProgram
+     * @return
+     */
+    private static List<Stmt> prepare(String source, boolean wholeProgram) {
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
 
@@ -56,16 +182,31 @@ public class Panza {
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error.
-        if (hadError) return;
+        if (hadError) return null;
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
         // Stop if there was a resolution error
-        if (hadError) return;
+        if (hadError) return null;
 
-        interpreter.interpret(statements);
+        // The optimization passes rebuild the nodes they change, so the result has to be resolved again after each.
+        Optimizer optimizer = new Optimizer();
+        statements = optimizer.optimize(statements);
+        resolver = new Resolver();
+        resolver.resolve(statements);
+
+        DeadCodeEliminator eliminator = new DeadCodeEliminator(resolver.referencedGlobals, wholeProgram);
+        statements = eliminator.eliminate(statements);
+        resolver = new Resolver();
+        resolver.resolve(statements);
+        if (showStats) {
+            int removed = optimizer.removed + eliminator.removed;
+            System.err.println("Removed " + removed + " dead statement" + (removed == 1 ? "." : "s."));
+        }
 
+        scriptSize = resolver.scriptSize();
+        return statements;
     }
 
     static void error(int line, String message) {
@@ -92,7 +233,7 @@ public class Panza {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        System.err.println(error.getMessage() + "\n[line " + error.line + "]");
         hadRuntimeError = true;
     }
 }
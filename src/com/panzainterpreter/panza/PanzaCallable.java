@@ -1,8 +1,22 @@
 package com.panzainterpreter.panza;
 
-import java.util.List;
-
 public interface PanzaCallable {
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object[] NO_ARGUMENTS = new Object[0];
+
+    Object call(Interpreter interpreter, Object[] arguments);
     int arity();
+
+    // Entry points for a fixed number of arguments, so a caller with only a few arguments doesn't have to put them in
+    // an array. The caller checks the arity first. Callables override these to take the arguments directly.
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] { a });
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] { a, b });
+    }
 }
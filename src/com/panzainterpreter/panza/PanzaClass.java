@@ -1,29 +1,29 @@
 package com.panzainterpreter.panza;
 
-import java.util.List;
 import java.util.Map;
 
 public class PanzaClass implements PanzaCallable {
     final String name;
     final PanzaClass superclass;
-    private final Map<String, PanzaFunction> methods;
 
-    PanzaClass(String name, PanzaClass superclass, Map<String, PanzaFunction> methods) {
+    // Every method the class has, including the ones it inherits. Filled in by the interpreter when the class is
+    // defined and never changed afterwards.
+    final Map<Symbol, PanzaFunction> methods;
+    final PanzaFunction initializer;
+
+    // Every instance starts out with this shape. Instance size is the most fields any instance has had so far.
+    final Shape rootShape = new Shape();
+    int instanceSize = 0;
+
+    PanzaClass(String name, PanzaClass superclass, Map<Symbol, PanzaFunction> methods) {
         this.name = name;
         this.superclass = superclass;
         this.methods = methods;
+        this.initializer = methods.get(Symbol.INIT);
     }
 
-    PanzaFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-
-        return null;
+    PanzaFunction findMethod(Symbol name) {
+        return methods.get(name);
     }
 
     @Override
@@ -32,18 +32,16 @@ public class PanzaClass implements PanzaCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
         PanzaInstance instance = new PanzaInstance(this);
-        PanzaFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.call(interpreter, instance, arguments);
         }
         return instance;
     }
 
     @Override
     public int arity() {
-        PanzaFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
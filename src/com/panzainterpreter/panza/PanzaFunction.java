@@ -1,49 +1,131 @@
 package com.panzainterpreter.panza;
 
-import java.util.List;
-
 public class PanzaFunction implements PanzaCallable {
     private final  Stmt.Function declaration;
-    private final Environment closure;
+    private final Object[] upvalues;
     private final boolean isInitializer;
+    final PanzaInstance receiver;
+
+    /**
+     * @param declaration
+     * @param upvalues The variables the function captured, in the order the Resolver listed them
+     * @param isInitializer
+     */
+    PanzaFunction(Stmt.Function declaration, Object[] upvalues, boolean isInitializer) {
+        this(declaration, upvalues, isInitializer, null);
+    }
 
-    PanzaFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    private PanzaFunction(Stmt.Function declaration, Object[] upvalues, boolean isInitializer, PanzaInstance receiver) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.isInitializer = isInitializer;
-
+        this.receiver = receiver;
     }
 
     /**
-     * Create a environment nested inside the methods original closure. Then declares "this" as a variable in that
-     * environment and bind it to the given instance.
+     * Creates a copy of the method that remembers the given instance, for when a method is used as a value rather than
+     * called straight away. Calling it passes the instance as "this".
      * @param instance
      * @return
      */
     PanzaFunction bind(PanzaInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new PanzaFunction(declaration, environment, isInitializer);
+        return new PanzaFunction(declaration, upvalues, isInitializer, instance);
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
-        }
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return call(interpreter, receiver, arguments);
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) { // Catches a return exception causing stack to unwind
-            if (isInitializer) return closure.getAt(0, "this");
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return run(interpreter, receiver, newFrame(receiver));
+    }
 
-            return returnValue.value;
-        }
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Object[] frame = newFrame(receiver);
+        frame[receiver == null ? 0 : 1] = a;
+        return run(interpreter, receiver, frame);
+    }
 
-        if (isInitializer) return closure.getAt(0, "this");
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Object[] frame = newFrame(receiver);
+        int slot = receiver == null ? 0 : 1;
+        frame[slot] = a;
+        frame[slot + 1] = b;
+        return run(interpreter, receiver, frame);
+    }
 
-        return null;
+    /**
+     * Calls the function with the given receiver, copying the arguments into a new frame.
+     * @param interpreter
+     * @param receiver
+     * @param arguments
+     * @return
+     */
+    Object call(Interpreter interpreter, PanzaInstance receiver, Object[] arguments) {
+        Object[] frame = newFrame(receiver);
+        System.arraycopy(arguments, 0, frame, receiver == null ? 0 : 1, arguments.length);
+        return run(interpreter, receiver, frame);
+    }
+
+    /**
+     * Allocates the slots for a call, sized by the Resolver to hold every variable declared directly in the body. For
+     * a method "this" goes in the first slot, ahead of the parameters. The caller writes the arguments in after it.
+     * @param receiver
+     * @return
+     */
+    Object[] newFrame(PanzaInstance receiver) {
+        Object[] frame = new Object[declaration.frameSize];
+        if (receiver != null) frame[0] = receiver;
+        return frame;
+    }
+
+    /**
+     * Runs the body in a frame that already holds the receiver and arguments. Plain functions have no receiver.
+     *
+     * If the body ends with a tail call the interpreter leaves the call for us, and we loop round and run it here
+     * instead, so tail recursion runs in a constant amount of Java stack.
+     * @param interpreter
+     * @param receiver
+     * @param frame
+     * @return
+     */
+    Object run(Interpreter interpreter, PanzaInstance receiver, Object[] frame) {
+        PanzaFunction function = this;
+        while (true) {
+            Stmt.Function declaration = function.declaration;
+            for (int slot : declaration.boxedParams) {
+                frame[slot] = new Cell(frame[slot]);
+            }
+            Environment environment = new Environment(frame, function.upvalues);
+            if (interpreter.tiers != null) interpreter.tiers.called(declaration);
+
+            Object value;
+            if (declaration.jitted != null) {
+                value = declaration.jitted.run(interpreter, frame);
+            } else if (declaration.compiled != null) {
+                value = declaration.compiled.evaluate(environment);
+            } else {
+                interpreter.executeBlock(declaration.body, environment);
+                value = interpreter.takeReturnValue();
+            }
+
+            if (interpreter.tailFunction == null) {
+                if (function.isInitializer) return receiver;
+
+                return value;
+            }
+
+            function = interpreter.tailFunction;
+            receiver = interpreter.tailReceiver;
+            frame = interpreter.tailFrame;
+            interpreter.tailFunction = null;
+            interpreter.tailReceiver = null;
+            interpreter.tailFrame = null;
+        }
     }
 
     @Override
@@ -1,14 +1,18 @@
 package com.panzainterpreter.panza;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class PanzaInstance {
-    private PanzaClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final PanzaClass klass;
+    Shape shape;
+    Object[] fields;
 
     PanzaInstance(PanzaClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = klass.instanceSize == 0 ? NO_FIELDS : new Object[klass.instanceSize];
     }
 
     /**
@@ -17,23 +21,56 @@ public class PanzaInstance {
      * @return
      */
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int index = shape.indexOf(name.symbol);
+        if (index != -1) {
+            return fields[index];
         }
 
-        PanzaFunction method = klass.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
+        return findMethod(name).bind(this);
+    }
+
+    /**
+     * Looks up a method on the instance's class, throwing a runtime error if there is no such property.
+     * @param name
+     * @return
+     */
+    PanzaFunction findMethod(Token name) {
+        PanzaFunction method = klass.findMethod(name.symbol);
+        if (method != null) return method;
 
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
     /**
-     * Adds the new field to the objects instance.
+     * Sets the field, adding it to the objects instance if it doesn't have it yet.
      * @param name
      * @param value
      */
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int index = shape.indexOf(name.symbol);
+        if (index != -1) {
+            fields[index] = value;
+            return;
+        }
+
+        addField(shape.withField(name.symbol), value);
+    }
+
+    /**
+     * Moves the instance to the next shape and stores the value of the field that was added, which always goes at
+     * the end of the field array.
+     * @param next
+     * @param value
+     */
+    void addField(Shape next, Object value) {
+        shape = next;
+        if (next.size > fields.length) {
+            fields = Arrays.copyOf(fields, next.size);
+        }
+        fields[next.size - 1] = value;
+
+        // Remember how big instances get so the next one can be allocated at its full size up front.
+        if (next.size > klass.instanceSize) klass.instanceSize = next.size;
     }
 
     @Override
@@ -1,20 +1,29 @@
 package com.panzainterpreter.panza;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Map<Symbol, Local>> scopes = new Stack<>();
+
+    // The frame of each function being resolved, innermost last. The first is the frame top-level code keeps the
+    // variables of its blocks in.
+    private final Stack<Frame> frames = new Stack<>();
+
+    // Loops waiting to be checked by CountedLoop.
+    private final List<Stmt.While> loops = new ArrayList<>();
+
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
+    // The number of every global that is read or assigned anywhere in the code resolved so far.
+    final Set<Integer> referencedGlobals = new HashSet<>();
 
     private enum FunctionType {
         NONE,
@@ -29,6 +38,62 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         SUBCLASS
     }
 
+    /**
+     * A local variable in a scope. The slot is the index the variable will be stored at in its function's frame at
+     * runtime, and function is the position of that frame on the stack of frames. Declaration is the statement that
+     * declared it, if it was declared by one. How the variable is used is recorded on the declaration when the scope
+     * ends, for the optimizer.
+     */
+    private static class Local {
+        final int slot;
+        final int function;
+        boolean defined = false;
+        boolean initialized = false;
+        Stmt declaration = null;
+        boolean read = false;
+        boolean assigned = false;
+        boolean captured = false;
+        boolean boxed = false;
+
+        // The variable and assignment expressions referring to the variable, which are told once the scope ends
+        // whether the variable is kept in a Cell.
+        final List<Expr> references = new ArrayList<>();
+
+        Local(int slot, int function) {
+            this.slot = slot;
+            this.function = function;
+        }
+    }
+
+    /**
+     * A function's frame at runtime. Size is the number of slots it needs for every variable declared in the function,
+     * including those in nested blocks. Captured holds the variables of enclosing functions the function uses, in the
+     * order they are copied into a closure, and captures says where each is copied from, as described in
+     * Environment.capture(). Function is the declaration the frame belongs to, or null for top-level code.
+     */
+    private static class Frame {
+        final Stmt.Function function;
+        int size = 0;
+        final List<Local> captured = new ArrayList<>();
+        final List<Integer> captures = new ArrayList<>();
+
+        Frame(Stmt.Function function) {
+            this.function = function;
+        }
+    }
+
+    Resolver() {
+        frames.push(new Frame(null));
+    }
+
+    /**
+     * Returns the number of slots top-level code needs for the variables declared in its blocks.
+     * @return
+     */
+    int scriptSize() {
+        return frames.firstElement().size;
+    }
+
     /**
      * Walks a list of statements and resolves each one.
      * @param statements
@@ -37,6 +102,15 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         for (Stmt statement: statements) {
             resolve(statement);
         }
+
+        // Whether a loop counts a variable nothing else can change depends on whether a closure captures the
+        // variable, which is only known once every scope the loops are in has ended.
+        if (scopes.isEmpty()) {
+            for (Stmt.While loop : loops) {
+                CountedLoop.recognize(loop);
+            }
+            loops.clear();
+        }
     }
 
     /**
@@ -47,20 +121,51 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType  enclosingFunction = currentFunction;
         currentFunction = type;
+        frames.push(new Frame(function));
         beginScope();
 
+        // A method's receiver lives in the first slot of its own frame, ahead of the parameters.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            defineSynthetic(Symbol.THIS);
+        }
+
+        List<Local> params = new ArrayList<>(function.params.size());
         for (Token param : function.params) {
             declare(param);
             define(param);
+            params.add(scopes.peek().get(param.symbol));
         }
 
         resolve(function.body);
+
+        // A parameter kept in a Cell is boxed when the call starts, as the caller writes the argument in directly.
+        List<Integer> boxedParams = new ArrayList<>();
+        for (Local param : params) {
+            if (isBoxed(param)) boxedParams.add(param.slot);
+        }
+        function.boxedParams = toArray(boxedParams);
+
         endScope();
+        Frame frame = frames.pop();
+        function.frameSize = frame.size;
+        function.captures = toArray(frame.captures);
         currentFunction = enclosingFunction;
     }
 
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
     /**
      * Begins a new scope, traverses into the statements inside teh block, then discards the scope.
+     *
+     * The block's variables get slots in the frame of the function it is in, so running a block never needs an
+     * Environment of its own. Closures copy the variables they capture, or share a Cell with the frame, so a closure
+     * created in one run of a block never sees the variables of the next.
      * @param stmt
      * @return
      */
@@ -69,7 +174,6 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         beginScope();
         resolve(stmt.statements);
         endScope();
-
         return null;
     }
 
@@ -83,10 +187,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
+        if (!scopes.isEmpty()) scopes.peek().get(stmt.name.symbol).declaration = stmt;
 
-        if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+        if (stmt.superclass != null && stmt.name.symbol == stmt.superclass.name.symbol) {
             Panza.error(stmt.superclass.name, "A class cannot inherit from itself");
         }
 
@@ -98,23 +203,19 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         // Create a new scope surrounding all of the super class methods if there is a super class
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            stmt.superSlot = defineSynthetic(Symbol.SUPER).slot;
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.symbol == Symbol.INIT) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
+        initialize(stmt.name);
 
         currentClass = enclosingClass;
         return null;
@@ -134,10 +235,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
      */
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
+        if (!scopes.isEmpty()) scopes.peek().get(stmt.name.symbol).declaration = stmt;
 
         resolveFunction(stmt, FunctionType.FUNCTION);
+        initialize(stmt.name);
         return null;
     }
 
@@ -165,6 +268,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 Panza.error(stmt.keyword, "Cannot return a value from an initializer");
             }
             resolve(stmt.value);
+
+            // Nothing is left to do in the function once the call returns, so the interpreter can reuse the frame.
+            if (stmt.value instanceof Expr.Call && currentFunction != FunctionType.NONE) {
+                stmt.tailCall = true;
+            }
         }
 
         return null;
@@ -172,18 +280,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
+        if (!scopes.isEmpty()) scopes.peek().get(stmt.name.symbol).declaration = stmt;
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
         define(stmt.name);
+        initialize(stmt.name);
         return null;
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        // A hot loop promotes the function it is in.
+        stmt.function = frames.peek().function;
         resolve(stmt.condition);
         resolve(stmt.body);
+        loops.add(stmt);
         return null;
     }
 
@@ -196,7 +309,19 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+
+        Local local = lookUp(expr.name.symbol);
+        expr.boxed = false;
+        if (local != null) {
+            expr.depth = depthOf(local);
+            expr.slot = slotOf(local);
+            local.assigned = true;
+            local.references.add(expr);
+        } else {
+            expr.depth = -1;
+            expr.slot = Environment.globalIndex(expr.name.symbol);
+            referencedGlobals.add(expr.slot);
+        }
         return null;
     }
 
@@ -250,8 +375,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     /**
-     * Resolve the super token as if it were a variable. This will store the number of hops along the environment chain
-     * the interpreter will need to walk to find the environment where the superclass is stored.
+     * Resolve the super token as if it were a variable, and "this" along with it for the instance the method is
+     * called on.
      * @param expr
      * @return
      */
@@ -262,7 +387,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         } else if (currentClass != ClassType.SUBCLASS) {
             Panza.error(expr.keyword, "Cannot use 'super' inside a class with no superclass");
         }
-        resolveLocal(expr, expr.keyword);
+        Local local = lookUp(Symbol.SUPER);
+        Local receiver = lookUp(Symbol.THIS);
+        if (local != null && receiver != null) {
+            expr.depth = depthOf(local);
+            expr.slot = slotOf(local);
+            expr.thisDepth = depthOf(receiver);
+            expr.thisSlot = slotOf(receiver);
+        }
         return null;
     }
 
@@ -272,7 +404,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Panza.error(expr.keyword, "Cannot use 'this' outside a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        Local local = lookUp(Symbol.THIS);
+        if (local != null) {
+            expr.depth = depthOf(local);
+            expr.slot = slotOf(local);
+        }
         return null;
     }
 
@@ -284,11 +420,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+        if (!scopes.isEmpty() && scopes.peek().containsKey(expr.name.symbol)
+                && !scopes.peek().get(expr.name.symbol).defined) {
             Panza.error(expr.name, "Cannot read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        Local local = lookUp(expr.name.symbol);
+        expr.boxed = false;
+        if (local != null) {
+            expr.depth = depthOf(local);
+            expr.slot = slotOf(local);
+            local.read = true;
+            local.references.add(expr);
+            expr.declaration = local.declaration instanceof Stmt.Var ? (Stmt.Var)local.declaration : null;
+        } else {
+            expr.depth = -1;
+            expr.slot = Environment.globalIndex(expr.name.symbol);
+            expr.declaration = null;
+            referencedGlobals.add(expr.slot);
+        }
         return null;
     }
 
@@ -305,52 +455,167 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     /**
-     * Adds a new scope to the stack of local scopes.
+     * Adds a new scope to the stack of local scopes. Its variables go in the frame of the function it is in.
      */
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<Symbol, Local>());
     }
 
     /**
-     * Removes a scope from the stack of local scopes.
+     * Removes a scope from the stack of local scopes, and records how each of its variables turned out to be used.
      */
     private void endScope() {
-        scopes.pop();
+        for (Local local : scopes.pop().values()) {
+            boolean boxed = isBoxed(local);
+            if (boxed) {
+                for (Expr reference : local.references) {
+                    if (reference instanceof Expr.Variable) {
+                        ((Expr.Variable)reference).boxed = true;
+                    } else {
+                        ((Expr.Assign)reference).boxed = true;
+                    }
+                }
+            }
+
+            if (local.declaration instanceof Stmt.Var) {
+                Stmt.Var declaration = (Stmt.Var)local.declaration;
+                declaration.assigned = local.assigned;
+                declaration.used = local.read;
+                declaration.captured = local.captured;
+                declaration.boxed = boxed;
+            } else if (local.declaration instanceof Stmt.Function) {
+                Stmt.Function declaration = (Stmt.Function)local.declaration;
+                declaration.used = local.read;
+                declaration.assigned = local.assigned;
+                declaration.boxed = boxed;
+            } else if (local.declaration instanceof Stmt.Class) {
+                ((Stmt.Class)local.declaration).boxed = boxed;
+            }
+        }
+    }
+
+    /**
+     * A variable has to be kept in a Cell if a closure captures it and it can change afterwards. That is when it is
+     * assigned anywhere, or when it is captured before it has been given its value, as a function referring to itself
+     * is.
+     * @param local
+     * @return
+     */
+    private static boolean isBoxed(Local local) {
+        return local.boxed || (local.captured && local.assigned);
     }
 
     /**
      * Adds the variableto the innermost scope so that it shadows any outer one and so that we know the variable exists.
-     * It is marked as "not ready" by binding its name to false in the scope map. Each value in the scope map means
-     * "it's finished being initialized."
+     * It is given the next free slot in the function's frame, which is returned, and marked as "not ready" until it is
+     * defined. Globals aren't tracked and -1 is returned for them.
      * @param name
+     * @return
      */
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return -1;
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        Map<Symbol, Local> scope = scopes.peek();
+        if (scope.containsKey(name.symbol)) {
             Panza.error(name, "Variable with this name already declared in this scope.");
         }
-        scope.put(name.lexeme, false);
+        Local local = newLocal();
+        scope.put(name.symbol, local);
+        return local.slot;
+    }
+
+    private Local newLocal() {
+        return new Local(frames.peek().size++, frames.size() - 1);
     }
 
     /**
-     * Sets the variables value in the scopr map to true to mark it as fully initialized and available for use.
+     * Marks the variable as fully initialized and available for use.
      * @param name
      */
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.symbol).defined = true;
     }
 
+    /**
+     * Marks the variable as holding its value. A function or class can refer to itself before then.
+     * @param name
+     */
+    private void initialize(Token name) {
+        if (scopes.isEmpty()) return;
+        scopes.peek().get(name.symbol).initialized = true;
+    }
 
-    private void resolveLocal(Expr expr, Token name) {
+    /**
+     * Declares and defines a variable the interpreter creates itself, such as "this" and "super".
+     * @param name
+     * @return
+     */
+    private Local defineSynthetic(Symbol name) {
+        Local local = newLocal();
+        local.defined = true;
+        local.initialized = true;
+        scopes.peek().put(name, local);
+        return local;
+    }
+
+    /**
+     * Finds the variable in the innermost scope declaring it. If no scope declares it the variable is assumed to be a
+     * global and null is returned.
+     * @param name
+     * @return
+     */
+    private Local lookUp(Symbol name) {
         for (int i =  scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 -i);
-                return;
-            }
+            Local local = scopes.get(i).get(name);
+            if (local != null) return local;
         }
+        return null;
+    }
+
+    /**
+     * Returns 0 if the variable is in the frame of the function being resolved, or 1 if it belongs to an enclosing
+     * function and has to be captured. Captured variables are noted, for the optimizer and to decide which variables
+     * need a Cell.
+     * @param local
+     * @return
+     */
+    private int depthOf(Local local) {
+        if (local.function == frames.size() - 1) return 0;
+
+        local.captured = true;
+        if (!local.initialized) local.boxed = true;
+        return 1;
+    }
+
+    /**
+     * Returns the slot the variable is in within the current frame, or its index among the variables the current
+     * function captures.
+     * @param local
+     * @return
+     */
+    private int slotOf(Local local) {
+        int function = frames.size() - 1;
+        if (local.function == function) return local.slot;
+        return capture(function, local);
+    }
+
+    /**
+     * Makes the function at the given position on the stack of frames capture a variable from an enclosing function,
+     * along with every function in between, and returns the variable's index among the function's captures.
+     * @param function
+     * @param local
+     * @return
+     */
+    private int capture(int function, Local local) {
+        Frame frame = frames.get(function);
+        int index = frame.captured.indexOf(local);
+        if (index != -1) return index;
+
+        int source = local.function == function - 1 ? local.slot : ~capture(function - 1, local);
+        frame.captured.add(local);
+        frame.captures.add(source);
+        return frame.captured.size() - 1;
     }
 
 }
@@ -0,0 +1,118 @@
+package com.panzainterpreter.panza;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A Panza string made by concatenating two others without copying either. Strings built up with + in a loop become a
+ * chain of ropes, so each step costs the same however long the string already is. The characters are only copied
+ * into a String when something needs them, such as printing or comparing the string, and that String is kept so it
+ * is only done once.
+ *
+ * A Panza string is either a Java String or a Rope, and short results are still concatenated into a String, as
+ * copying a few characters is cheaper than a Rope.
+ */
+public class Rope implements CharSequence {
+    // Concatenations that produce a string no longer than this copy the characters into a new String instead.
+    private static final int MAX_COPY = 64;
+
+    private CharSequence left;
+    private CharSequence right;
+    private final int length;
+    private String flat = null;
+
+    private Rope(CharSequence left, CharSequence right) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length() + right.length();
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    /**
+     * Concatenates two Panza strings.
+     * @param left
+     * @param right
+     * @return
+     */
+    static CharSequence concat(Object left, Object right) {
+        CharSequence a = (CharSequence)left;
+        CharSequence b = (CharSequence)right;
+        if (a.length() == 0) return b;
+        if (b.length() == 0) return a;
+        if (a.length() + b.length() <= MAX_COPY) return a.toString() + b.toString();
+        return new Rope(a, b);
+    }
+
+    /**
+     * Copies the characters of the whole tree into a String. The tree is walked with an explicit stack, filling in the
+     * characters from the end, as a string built by appending in a loop is a chain of ropes far too deep to recurse
+     * down. Afterwards the parts are dropped so they can be garbage collected.
+     * @return
+     */
+    private String flatten() {
+        if (flat != null) return flat;
+
+        char[] chars = new char[length];
+        int end = length;
+        Deque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            CharSequence part = pending.pop();
+            if (part instanceof Rope && ((Rope)part).flat == null) {
+                // The left part is popped after the right one, so it fills in the characters before it.
+                Rope rope = (Rope)part;
+                pending.push(rope.left);
+                pending.push(rope.right);
+            } else {
+                String text = part.toString();
+                end -= text.length();
+                text.getChars(0, text.length(), chars, end);
+            }
+        }
+
+        flat = new String(chars);
+        left = null;
+        right = null;
+        return flat;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return flatten().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return flatten().subSequence(start, end);
+    }
+
+    /**
+     * A Rope is equal to any Rope or String with the same characters.
+     * @param other
+     * @return
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!isString(other) || ((CharSequence)other).length() != length) return false;
+        return flatten().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return flatten().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return flatten();
+    }
+}
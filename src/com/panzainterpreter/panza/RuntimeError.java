@@ -2,9 +2,22 @@ package com.panzainterpreter.panza;
 
 public class RuntimeError extends RuntimeException {
     final Token token;
+    final int line;
 
     RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.line;
+    }
+
+    /**
+     * Used by the VM, which only keeps track of the line each instruction came from rather than its token.
+     * @param line
+     * @param message
+     */
+    RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
     }
 }
@@ -18,26 +18,26 @@ public class Scanner {
     private int line = 1;
 
     // Hash map to hold all reserved words for the lux language
-    private static final Map<String, TokenType> keywords;
+    private static final Map<Symbol, TokenType> keywords;
 
     static  {
         keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUNCTION);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VARIABLE);
-        keywords.put("while",  WHILE);
+        keywords.put(Symbol.intern("and"),    AND);
+        keywords.put(Symbol.intern("class"),  CLASS);
+        keywords.put(Symbol.intern("else"),   ELSE);
+        keywords.put(Symbol.intern("false"),  FALSE);
+        keywords.put(Symbol.intern("for"),    FOR);
+        keywords.put(Symbol.intern("fun"),    FUNCTION);
+        keywords.put(Symbol.intern("if"),     IF);
+        keywords.put(Symbol.intern("nil"),    NIL);
+        keywords.put(Symbol.intern("or"),     OR);
+        keywords.put(Symbol.intern("print"),  PRINT);
+        keywords.put(Symbol.intern("return"), RETURN);
+        keywords.put(Symbol.intern("super"),  SUPER);
+        keywords.put(Symbol.intern("this"),   THIS);
+        keywords.put(Symbol.intern("true"),   TRUE);
+        keywords.put(Symbol.intern("var"),    VARIABLE);
+        keywords.put(Symbol.intern("while"),  WHILE);
     }
 
     Scanner(String source) {
@@ -119,13 +119,13 @@ public class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        // Check to see if the identifier is a reserved word
-        String text = source.substring(start, current);
+        // Every occurrence of a name shares one Symbol, which also tells us whether it is a reserved word.
+        Symbol symbol = Symbol.intern(source, start, current);
 
-        TokenType type = keywords.get(text);
+        TokenType type = keywords.get(symbol);
         if (type == null) type = IDENTIFIER;
 
-        addToken(type);
+        tokens.add(new Token(type, symbol, line));
     }
 
     /**
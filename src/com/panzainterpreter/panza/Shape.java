@@ -0,0 +1,58 @@
+package com.panzainterpreter.panza;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout of an instance's fields, also known as a hidden class. A shape maps each field name to the index the
+ * field is stored at in the instance's field array. Adding a field moves an instance along a transition to the next
+ * shape, and transitions are shared, so every instance that had the same fields added in the same order ends up
+ * with the very same Shape object.
+ */
+public class Shape {
+    private final Map<Symbol, Integer> indexes;
+    private Map<Symbol, Shape> transitions = null;
+    final int size;
+
+    /**
+     * Creates an empty shape, the root every instance of a class starts out with.
+     */
+    Shape() {
+        this.indexes = Collections.emptyMap();
+        this.size = 0;
+    }
+
+    private Shape(Shape parent, Symbol name) {
+        this.indexes = new HashMap<>(parent.indexes);
+        this.indexes.put(name, parent.size);
+        this.size = parent.size + 1;
+    }
+
+    /**
+     * Returns the index of the field in instances of this shape, or -1 if they don't have the field.
+     * @param name
+     * @return
+     */
+    int indexOf(Symbol name) {
+        Integer index = indexes.get(name);
+        if (index == null) return -1;
+        return index;
+    }
+
+    /**
+     * Returns the shape an instance moves to when the field is added to it. The new field is stored at index size.
+     * @param name
+     * @return
+     */
+    Shape withField(Symbol name) {
+        if (transitions == null) transitions = new HashMap<>();
+
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
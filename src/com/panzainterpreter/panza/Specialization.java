@@ -0,0 +1,21 @@
+package com.panzainterpreter.panza;
+
+/**
+ * What a binary expression has specialized itself for, based on the operands it has seen. A node starts out
+ * uninitialized, runs the generic operation the first time and then rewrites itself to the specialization matching
+ * the operand types it saw. Each specialization guards on its operand types, and a node whose guard fails goes back
+ * to the generic operation for good, so a node can change at most twice.
+ */
+public enum Specialization {
+    // Not evaluated yet.
+    UNINITIALIZED,
+
+    // Arithmetic or a comparison on two numbers, done without boxing the operands.
+    NUMBER,
+
+    // + on two strings.
+    STRING,
+
+    // Anything else, or a node whose operands stopped matching its specialization.
+    GENERIC
+}
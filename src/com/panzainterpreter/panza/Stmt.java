@@ -46,6 +46,10 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+
+    int slot = -1;
+    boolean boxed = false;
+    int superSlot;
   }
 
 /**
@@ -80,6 +84,19 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    int slot = -1;
+    boolean boxed = false;
+    int frameSize = 0;
+    int[] captures;
+    int[] boxedParams;
+    boolean used = false;
+    boolean assigned = false;
+    ClosureCompiler.Expression compiled = null;
+    JitCompiler.Compiled jitted = null;
+    int tier = 0;
+    boolean settled = false;
+    int calls = 0;
   }
 
 /**
@@ -131,6 +148,8 @@ abstract class Stmt {
 
     final Token keyword;
     final Expr value;
+
+    boolean tailCall = false;
   }
 
 /**
@@ -148,6 +167,12 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    int slot = -1;
+    boolean boxed = false;
+    boolean assigned = false;
+    boolean used = false;
+    boolean captured = false;
   }
 
 /**
@@ -165,6 +190,14 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+
+    boolean counted = false;
+    int counterSlot;
+    double step;
+    Stmt.Function function = null;
+    int backEdges = 0;
+    ClosureCompiler.Expression osr = null;
+    int osrTier = 0;
   }
 
 
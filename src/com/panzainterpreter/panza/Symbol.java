@@ -0,0 +1,91 @@
+package com.panzainterpreter.panza;
+
+/**
+ * An interned name. The scanner looks every identifier and keyword up in a single table, so each distinct name is
+ * represented by one Symbol however many times it appears in the source. Two names are the same only if they are the
+ * same Symbol, so maps keyed by Symbols compare keys by identity, and the hash is worked out once when the Symbol is
+ * created.
+ */
+public class Symbol {
+    // An open addressing hash table of every Symbol, which is kept at most half full.
+    private static Symbol[] table = new Symbol[256];
+    private static int count = 0;
+
+    static final Symbol THIS = intern("this");
+    static final Symbol SUPER = intern("super");
+    static final Symbol INIT = intern("init");
+
+    final String name;
+    private final int hash;
+
+    // The number of the global variable with this name, given out by Environment the first time it is needed.
+    int global = -1;
+
+    private Symbol(String name, int hash) {
+        this.name = name;
+        this.hash = hash;
+    }
+
+    static Symbol intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    /**
+     * Returns the Symbol for the characters between start and end of the source. A String for the name is only
+     * created the first time it is seen.
+     * @param source
+     * @param start
+     * @param end
+     * @return
+     */
+    static synchronized Symbol intern(CharSequence source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = table.length - 1;
+        int index = hash & mask;
+        for (Symbol symbol = table[index]; symbol != null; symbol = table[index]) {
+            if (symbol.hash == hash && symbol.matches(source, start, end)) return symbol;
+            index = (index + 1) & mask;
+        }
+
+        Symbol symbol = new Symbol(source.subSequence(start, end).toString(), hash);
+        count++;
+        table[index] = symbol;
+        if (count * 2 > table.length) grow();
+        return symbol;
+    }
+
+    private boolean matches(CharSequence source, int start, int end) {
+        if (name.length() != end - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private static void grow() {
+        Symbol[] old = table;
+        table = new Symbol[old.length * 2];
+        int mask = table.length - 1;
+        for (Symbol symbol : old) {
+            if (symbol == null) continue;
+
+            int index = symbol.hash & mask;
+            while (table[index] != null) index = (index + 1) & mask;
+            table[index] = symbol;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
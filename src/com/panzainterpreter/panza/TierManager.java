@@ -0,0 +1,128 @@
+package com.panzainterpreter.panza;
+
+/**
+ * Decides which engine runs each function when tiered execution is on. Every function starts in the tree-walking
+ * interpreter, so a short script starts straight away, and a function that turns out to be hot is promoted a tier at
+ * a time: first to closures compiled by the ClosureCompiler, then to a JVM class compiled by the JitCompiler.
+ *
+ * PanzaFunction reports each call, and the engines report each iteration of a loop, its back edge. A function is
+ * promoted when its calls reach the threshold for the next tier, or when a loop in it has gone round the loop
+ * threshold number of times, so a function called only a few times that spends them in a long loop is promoted too.
+ * A promotion takes effect from the next call, the call already running carries on in the engine it started in.
+ *
+ * A loop that reaches the loop threshold is also compiled on its own, into JVM bytecode if the JitCompiler supports
+ * it and closures otherwise, and the engine running it switches to that code at the back edge, on-stack replacement.
+ * This is what speeds up a script that is one long top-level loop, as it has no function call to be promoted at. The
+ * frame is handed over as it is: both engines keep variables in the same slots, and the compiled loop tests its
+ * condition first, so it carries on from the iteration the engine had got to. The compiled loop then runs every time
+ * the loop is started again.
+ */
+public class TierManager {
+    static final int INTERPRETED = 0;
+    static final int CLOSURES = 1;
+    static final int JVM = 2;
+
+    private static final String[] TIER_NAMES = { "the interpreter", "closures", "JVM bytecode" };
+
+    // Returned by a compiled loop that finished normally, rather than by a return statement in it.
+    static final Object LOOP_EXIT = new Object();
+
+    private final Interpreter interpreter;
+    private final ClosureCompiler closureCompiler;
+    private final int closureThreshold;
+    private final int jitThreshold;
+    private final int loopThreshold;
+    private final boolean logPromotions;
+
+    /**
+     * @param interpreter
+     * @param closureThreshold The number of calls that promotes a function to closures
+     * @param jitThreshold The number of calls that promotes a function to JVM bytecode
+     * @param loopThreshold The number of iterations of a loop that promotes the function it is in a tier
+     * @param logPromotions Whether to report each promotion on stderr
+     */
+    TierManager(Interpreter interpreter, int closureThreshold, int jitThreshold, int loopThreshold,
+                boolean logPromotions) {
+        this.interpreter = interpreter;
+        this.closureCompiler = new ClosureCompiler(interpreter);
+        this.closureThreshold = closureThreshold;
+        this.jitThreshold = jitThreshold;
+        this.loopThreshold = loopThreshold;
+        this.logPromotions = logPromotions;
+    }
+
+    /**
+     * Counts a call of the function, promoting it if that makes it hot enough for the next tier.
+     * @param function
+     */
+    void called(Stmt.Function function) {
+        if (function.settled) return;
+
+        int threshold = function.tier == INTERPRETED ? closureThreshold : jitThreshold;
+        if (++function.calls >= threshold) promote(function, function.calls + " calls");
+    }
+
+    /**
+     * Counts an iteration of the loop. Each time the loop threshold is reached the function it is in is promoted, and
+     * the first time the loop itself is compiled.
+     * @param loop
+     * @param tier The tier of the engine running the loop
+     * @param environment The frame the loop is running in
+     * @return The compiled loop for the engine to carry on in, if it is a higher tier, or null
+     */
+    ClosureCompiler.Expression backEdge(Stmt.While loop, int tier, Environment environment) {
+        if (++loop.backEdges < loopThreshold) return null;
+
+        loop.backEdges = 0;
+        if (loop.function != null && !loop.function.settled) {
+            promote(loop.function, loopThreshold + " iterations of a loop");
+        }
+        if (loop.osr == null) compileLoop(loop, environment.slots().length);
+        return loop.osrTier > tier ? loop.osr : null;
+    }
+
+    private void compileLoop(Stmt.While loop, int frameSize) {
+        String where = loop.function == null ? "top-level code" : loop.function.name.lexeme;
+        try {
+            JitCompiler.Compiled compiled = JitCompiler.compileLoop(loop, frameSize);
+            loop.osr = environment -> compiled.run(interpreter, environment.slots());
+            loop.osrTier = JVM;
+        } catch (JitCompiler.Unsupported unsupported) {
+            ClosureCompiler.Statement compiled = loop.accept(closureCompiler);
+            loop.osr = environment -> compiled.execute(environment) ? closureCompiler.takeReturnValue() : LOOP_EXIT;
+            loop.osrTier = CLOSURES;
+        }
+
+        log("Replaced a loop in " + where + " with " + TIER_NAMES[loop.osrTier] + " after " + loopThreshold
+                + " iterations.");
+    }
+
+    /**
+     * Moves the function up a tier. A function the JitCompiler can't compile stays on closures, and is settled there
+     * so it isn't tried again.
+     * @param function
+     * @param reason
+     */
+    private void promote(Stmt.Function function, String reason) {
+        if (function.tier == INTERPRETED) {
+            closureCompiler.compileFunction(function);
+        } else {
+            try {
+                function.jitted = JitCompiler.compile(function);
+            } catch (JitCompiler.Unsupported unsupported) {
+                function.settled = true;
+                log("Kept " + function.name.lexeme + " on closures after " + reason + ", it can't be compiled to "
+                        + TIER_NAMES[JVM] + ": " + unsupported.getMessage() + ".");
+                return;
+            }
+            function.tier = JVM;
+            function.settled = true;
+        }
+
+        log("Promoted " + function.name.lexeme + " to " + TIER_NAMES[function.tier] + " after " + reason + ".");
+    }
+
+    private void log(String message) {
+        if (logPromotions) System.err.println("[tiers] " + message);
+    }
+}
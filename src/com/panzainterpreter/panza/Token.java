@@ -7,11 +7,29 @@ public class Token {
     final Object literal;
     final int line;
 
+    // The interned name of an identifier or keyword, null for any other token.
+    final Symbol symbol;
+
     Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = null;
+    }
+
+    /**
+     * Creates an identifier or keyword token, which shares its lexeme with every other token for the same name.
+     * @param type
+     * @param symbol
+     * @param line
+     */
+    Token(TokenType type, Symbol symbol, int line) {
+        this.type = type;
+        this.lexeme = symbol.name;
+        this.literal = null;
+        this.line = line;
+        this.symbol = symbol;
     }
 
     public String toString() {
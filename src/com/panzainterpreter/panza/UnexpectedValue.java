@@ -0,0 +1,15 @@
+package com.panzainterpreter.panza;
+
+/**
+ * Thrown when a speculative, unboxed evaluation produces a value of a type it did not expect. Carries the value that
+ * was produced so the caller can carry on with the generic path without evaluating the expression again.
+ */
+public class UnexpectedValue extends RuntimeException {
+
+    final Object value;
+
+    UnexpectedValue(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
@@ -0,0 +1,593 @@
+package com.panzainterpreter.panza;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A stack based virtual machine that executes the bytecode produced by the Compiler. Instead of walking the syntax
+ * tree, run() decodes one instruction at a time in a single dispatch loop, with every local variable and temporary
+ * value kept on one shared value stack.
+ *
+ * Calls never recurse on the Java stack. Each call pushes a CallFrame onto an array that grows as needed, so the depth
+ * of a script is only limited by the heap, and since the whole state of a script is in the VM a running script can be
+ * paused after a budget of work, inspected and later resumed where it left off, which VmScheduler uses to time-slice
+ * several scripts on one thread.
+ */
+public class VM {
+
+    /**
+     * An ongoing function call. Slots is the index of the first stack slot the function can use, which holds the
+     * function itself, or the receiver for a method, followed by the arguments and then the locals.
+     */
+    private static class CallFrame {
+        VmClosure closure;
+        int ip;
+        int slots;
+    }
+
+    /**
+     * Thrown by the instruction helpers, run() attaches the line of the failing instruction and reports it.
+     */
+    private static class VmError extends RuntimeException {
+        VmError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    private final Environment globals = new Environment();
+    private VmUpvalue openUpvalues = null;
+
+    /**
+     * Defines native functions
+     */
+    VM() {
+        globals.define("clock", new VmNative(0, arguments -> (double)System.currentTimeMillis() / 1000.0));
+    }
+
+    void interpret(VmFunction script) {
+        start(script);
+        resume(Long.MAX_VALUE);
+    }
+
+    /**
+     * Sets the script up to run, without running any of it. The script is then run by resume().
+     * @param script
+     */
+    void start(VmFunction script) {
+        VmClosure closure = new VmClosure(script);
+        push(closure);
+        call(closure, 0);
+    }
+
+    /**
+     * Runs the script from where it last stopped until it finishes, or until it has passed the given number of
+     * backward jumps and calls, which every long running script has to pass through. This lets a caller time-slice
+     * several scripts on one thread, as VmScheduler does. Returns true once the script has finished, including when it
+     * stopped with a runtime error.
+     * @param budget At least 1
+     * @return
+     */
+    boolean resume(long budget) {
+        if (budget <= 0) throw new IllegalArgumentException("The budget must be at least 1, not " + budget + ".");
+        if (frameCount == 0) return true;
+
+        try {
+            return run(budget);
+        } catch (RuntimeError error) {
+            resetStack();
+            Panza.runtimeError(error);
+            return true;
+        }
+    }
+
+    boolean isFinished() {
+        return frameCount == 0;
+    }
+
+    /**
+     * Describes the calls in progress, innermost first, with the line each one is on.
+     * @return
+     */
+    List<String> stackTrace() {
+        List<String> trace = new ArrayList<>();
+        for (int i = frameCount - 1; i >= 0; i--) {
+            CallFrame frame = frames[i];
+            int[] lines = frame.closure.function.chunk.lines;
+            int line = lines[frame.ip == 0 ? 0 : frame.ip - 1];
+            String name = frame.closure.function.name == null ? "script" : frame.closure.function.name + "()";
+            trace.add("[line " + line + "] in " + name);
+        }
+        return trace;
+    }
+
+    /**
+     * Returns a copy of the stack slots of a call in progress, the function or receiver followed by the arguments,
+     * locals and temporaries. Depth 0 is the innermost call.
+     * @param depth
+     * @return
+     */
+    Object[] frameSlots(int depth) {
+        int index = frameCount - 1 - depth;
+        int end = index == frameCount - 1 ? stackTop : frames[index + 1].slots;
+        return Arrays.copyOfRange(stack, frames[index].slots, end);
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, stackTop, null);
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    /**
+     * The dispatch loop. The current frame's code, constants, instruction pointer and stack base are cached in locals
+     * and only written back to the frame before a call, then reloaded once the callee's frame is in place. Returns
+     * true when the script finishes, or false when it stops early with the instruction pointer saved in the frame.
+     * @param budget
+     * @return
+     */
+    private boolean run(long budget) {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.slots;
+
+        try {
+            for (;;) {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT: {
+                        push(constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                        ip += 2;
+                        break;
+                    }
+                    case OpCode.NIL: push(null); break;
+                    case OpCode.TRUE: push(true); break;
+                    case OpCode.FALSE: push(false); break;
+                    case OpCode.POP: stack[--stackTop] = null; break;
+                    case OpCode.GET_LOCAL: push(stack[base + (code[ip++] & 0xff)]); break;
+                    case OpCode.SET_LOCAL: stack[base + (code[ip++] & 0xff)] = stack[stackTop - 1]; break;
+                    case OpCode.GET_GLOBAL: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        Object value = globals.lookUpGlobal(index);
+                        if (value == Environment.UNDEFINED) {
+                            throw new VmError("Undefined variable '" + Environment.globalName(index) + "'.");
+                        }
+                        push(value);
+                        break;
+                    }
+                    case OpCode.DEFINE_GLOBAL: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        globals.defineGlobal(index, pop());
+                        break;
+                    }
+                    case OpCode.SET_GLOBAL: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (globals.lookUpGlobal(index) == Environment.UNDEFINED) {
+                            throw new VmError("Undefined variable '" + Environment.globalName(index) + "'.");
+                        }
+                        globals.defineGlobal(index, stack[stackTop - 1]);
+                        break;
+                    }
+                    case OpCode.GET_UPVALUE: {
+                        VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        push(upvalue.open ? stack[upvalue.slot] : upvalue.closed);
+                        break;
+                    }
+                    case OpCode.SET_UPVALUE: {
+                        VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        if (upvalue.open) {
+                            stack[upvalue.slot] = stack[stackTop - 1];
+                        } else {
+                            upvalue.closed = stack[stackTop - 1];
+                        }
+                        break;
+                    }
+                    case OpCode.GET_PROPERTY: {
+                        Symbol name = (Symbol)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        if (!(stack[stackTop - 1] instanceof VmInstance)) {
+                            throw new VmError("Only instances have properties.");
+                        }
+                        VmInstance instance = (VmInstance)stack[stackTop - 1];
+                        int index = instance.shape.indexOf(name);
+                        if (index != -1) {
+                            stack[stackTop - 1] = instance.fields[index];
+                            break;
+                        }
+                        stack[stackTop - 1] = bindMethod(instance.klass, instance, name);
+                        break;
+                    }
+                    case OpCode.SET_PROPERTY: {
+                        Symbol name = (Symbol)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        if (!(stack[stackTop - 2] instanceof VmInstance)) {
+                            throw new VmError("Only instance have fields");
+                        }
+                        Object value = pop();
+                        ((VmInstance)stack[stackTop - 1]).set(name, value);
+                        stack[stackTop - 1] = value;
+                        break;
+                    }
+                    case OpCode.GET_SUPER: {
+                        Symbol name = (Symbol)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        VmClass superclass = (VmClass)pop();
+                        stack[stackTop - 1] = bindMethod(superclass, stack[stackTop - 1], name);
+                        break;
+                    }
+                    case OpCode.EQUAL: {
+                        Object b = pop();
+                        stack[stackTop - 1] = Interpreter.isEqual(stack[stackTop - 1], b);
+                        break;
+                    }
+                    case OpCode.GREATER: {
+                        checkNumberOperands();
+                        double b = (double)pop();
+                        stack[stackTop - 1] = (double)stack[stackTop - 1] > b;
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL: {
+                        checkNumberOperands();
+                        double b = (double)pop();
+                        stack[stackTop - 1] = (double)stack[stackTop - 1] >= b;
+                        break;
+                    }
+                    case OpCode.LESS: {
+                        checkNumberOperands();
+                        double b = (double)pop();
+                        stack[stackTop - 1] = (double)stack[stackTop - 1] < b;
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL: {
+                        checkNumberOperands();
+                        double b = (double)pop();
+                        stack[stackTop - 1] = (double)stack[stackTop - 1] <= b;
+                        break;
+                    }
+                    case OpCode.ADD: {
+                        Object b = stack[stackTop - 1];
+                        Object a = stack[stackTop - 2];
+                        if (a instanceof Double && b instanceof Double) {
+                            pop();
+                            stack[stackTop - 1] = (double)a + (double)b;
+                        } else if (Rope.isString(a) && Rope.isString(b)) {
+                            pop();
+                            stack[stackTop - 1] = Rope.concat(a, b);
+                        } else {
+                            throw new VmError("Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OpCode.SUBTRACT: {
+                        checkNumberOperands();
+                        double b = (double)pop();
+                        stack[stackTop - 1] = (double)stack[stackTop - 1] - b;
+                        break;
+                    }
+                    case OpCode.MULTIPLY: {
+                        checkNumberOperands();
+                        double b = (double)pop();
+                        stack[stackTop - 1] = (double)stack[stackTop - 1] * b;
+                        break;
+                    }
+                    case OpCode.DIVIDE: {
+                        checkNumberOperands();
+                        double b = (double)pop();
+                        stack[stackTop - 1] = (double)stack[stackTop - 1] / b;
+                        break;
+                    }
+                    case OpCode.NOT:
+                        stack[stackTop - 1] = !Interpreter.isTruthy(stack[stackTop - 1]);
+                        break;
+                    case OpCode.NEGATE: {
+                        if (!(stack[stackTop - 1] instanceof Double)) {
+                            throw new VmError("Operand must be a number");
+                        }
+                        stack[stackTop - 1] = -(double)stack[stackTop - 1];
+                        break;
+                    }
+                    case OpCode.PRINT:
+                        System.out.println(Interpreter.stringify(pop()));
+                        break;
+                    case OpCode.JUMP: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2 + offset;
+                        break;
+                    }
+                    case OpCode.JUMP_IF_FALSE: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (!Interpreter.isTruthy(stack[stackTop - 1])) ip += offset;
+                        break;
+                    }
+                    case OpCode.LOOP: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2 - offset;
+                        if (--budget == 0) {
+                            frame.ip = ip;
+                            return false;
+                        }
+                        break;
+                    }
+                    case OpCode.CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        callValue(stack[stackTop - argCount - 1], argCount);
+
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        base = frame.slots;
+                        if (--budget == 0) {
+                            return false;
+                        }
+                        break;
+                    }
+                    case OpCode.INVOKE: {
+                        Symbol name = (Symbol)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        int argCount = code[ip + 2] & 0xff;
+                        ip += 3;
+                        frame.ip = ip;
+                        invoke(name, argCount);
+
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        base = frame.slots;
+                        if (--budget == 0) {
+                            return false;
+                        }
+                        break;
+                    }
+                    case OpCode.SUPER_INVOKE: {
+                        Symbol name = (Symbol)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        int argCount = code[ip + 2] & 0xff;
+                        ip += 3;
+                        frame.ip = ip;
+                        VmClass superclass = (VmClass)pop();
+                        invokeFromClass(superclass, name, argCount);
+
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        base = frame.slots;
+                        if (--budget == 0) {
+                            return false;
+                        }
+                        break;
+                    }
+                    case OpCode.CLOSURE: {
+                        VmFunction function = (VmFunction)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        VmClosure closure = new VmClosure(function);
+                        push(closure);
+                        for (int i = 0; i < closure.upvalues.length; i++) {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = code[ip++] & 0xff;
+                            if (isLocal) {
+                                closure.upvalues[i] = captureUpvalue(base + index);
+                            } else {
+                                closure.upvalues[i] = frame.closure.upvalues[index];
+                            }
+                        }
+                        break;
+                    }
+                    case OpCode.CLOSE_UPVALUE:
+                        closeUpvalues(stackTop - 1);
+                        pop();
+                        break;
+                    case OpCode.RETURN: {
+                        Object result = pop();
+                        closeUpvalues(base);
+                        frameCount--;
+                        if (frameCount == 0) {
+                            pop();
+                            return true;
+                        }
+
+                        Arrays.fill(stack, base, stackTop, null);
+                        stackTop = base;
+                        push(result);
+
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        base = frame.slots;
+                        break;
+                    }
+                    case OpCode.CLASS: {
+                        Symbol name = (Symbol)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        push(new VmClass(name.name));
+                        break;
+                    }
+                    case OpCode.INHERIT: {
+                        if (!(stack[stackTop - 2] instanceof VmClass)) {
+                            throw new VmError("Superclass must be a class");
+                        }
+                        VmClass superclass = (VmClass)stack[stackTop - 2];
+                        VmClass subclass = (VmClass)pop();
+                        subclass.methods.putAll(superclass.methods);
+                        break;
+                    }
+                    case OpCode.METHOD: {
+                        Symbol name = (Symbol)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        VmClosure method = (VmClosure)pop();
+                        ((VmClass)stack[stackTop - 1]).methods.put(name, method);
+                        break;
+                    }
+                }
+            }
+        } catch (VmError error) {
+            throw new RuntimeError(frame.closure.function.chunk.lines[ip - 1], error.getMessage());
+        }
+    }
+
+    /**
+     * Calls whatever is sitting below the arguments on the stack. Functions get a new frame, classes get a new
+     * instance placed in the callee's slot so their initializer sees it as "this", and natives run immediately.
+     * @param callee
+     * @param argCount
+     */
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof VmClosure) {
+            call((VmClosure)callee, argCount);
+        } else if (callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod)callee;
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof VmClass) {
+            VmClass klass = (VmClass)callee;
+            VmClosure initializer = klass.methods.get(Symbol.INIT);
+            if (initializer == null && argCount != 0) {
+                throw new VmError("Expected 0 arguments but got " + argCount + ".");
+            }
+
+            stack[stackTop - argCount - 1] = new VmInstance(klass);
+            if (initializer != null) call(initializer, argCount);
+        } else if (callee instanceof VmNative) {
+            VmNative function = (VmNative)callee;
+            if (argCount != function.arity) {
+                throw new VmError("Expected " + function.arity + " arguments but got " + argCount + ".");
+            }
+
+            Object[] arguments = Arrays.copyOfRange(stack, stackTop - argCount, stackTop);
+            Object result = function.body.call(arguments);
+            Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+            stackTop -= argCount + 1;
+            push(result);
+        } else {
+            throw new VmError("Can only call functions and classes.");
+        }
+    }
+
+    private void call(VmClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw new VmError("Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.slots = stackTop - argCount - 1;
+        frameCount++;
+    }
+
+    /**
+     * Calls a method straight off the receiver without creating a bound method. A field holding a function takes
+     * priority over a method with the same name, just like a property access would.
+     * @param name
+     * @param argCount
+     */
+    private void invoke(Symbol name, int argCount) {
+        Object receiver = stack[stackTop - argCount - 1];
+        if (!(receiver instanceof VmInstance)) {
+            throw new VmError("Only instances have properties.");
+        }
+
+        VmInstance instance = (VmInstance)receiver;
+        int index = instance.shape.indexOf(name);
+        if (index != -1) {
+            Object value = instance.fields[index];
+            stack[stackTop - argCount - 1] = value;
+            callValue(value, argCount);
+            return;
+        }
+
+        invokeFromClass(instance.klass, name, argCount);
+    }
+
+    private void invokeFromClass(VmClass klass, Symbol name, int argCount) {
+        VmClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw new VmError("Undefined property '" + name + "'.");
+        }
+        call(method, argCount);
+    }
+
+    private VmBoundMethod bindMethod(VmClass klass, Object receiver, Symbol name) {
+        VmClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw new VmError("Undefined property '" + name + "'.");
+        }
+        return new VmBoundMethod(receiver, method);
+    }
+
+    /**
+     * Returns the upvalue for a stack slot, reusing an existing one so closures capturing the same variable share it.
+     * The open upvalue list is kept sorted with the highest slot first.
+     * @param slot
+     * @return
+     */
+    private VmUpvalue captureUpvalue(int slot) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        VmUpvalue created = new VmUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    /**
+     * Closes every open upvalue pointing at or above the given slot by copying the variable out of the stack.
+     * @param last
+     */
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.open = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void checkNumberOperands() {
+        if (stack[stackTop - 1] instanceof Double && stack[stackTop - 2] instanceof Double) return;
+        throw new VmError("Operands must be numbers");
+    }
+
+    private void push(Object value) {
+        if (stackTop == stack.length) {
+            stack = Arrays.copyOf(stack, stackTop * 2);
+        }
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--stackTop];
+        stack[stackTop] = null;
+        return value;
+    }
+}
@@ -0,0 +1,19 @@
+package com.panzainterpreter.panza;
+
+/**
+ * A method that has been accessed off an instance, remembering the instance so "this" is bound when it is called.
+ */
+public class VmBoundMethod {
+    final Object receiver;
+    final VmClosure method;
+
+    VmBoundMethod(Object receiver, VmClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
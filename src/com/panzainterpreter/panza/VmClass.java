@@ -0,0 +1,24 @@
+package com.panzainterpreter.panza;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A class in the VM. Inherited methods are copied down into the subclass when it is defined so looking up a method
+ * never has to walk the superclass chain.
+ */
+public class VmClass {
+    final String name;
+    final Map<Symbol, VmClosure> methods = new HashMap<>();
+    final Shape rootShape = new Shape();
+    int instanceSize = 0;
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,19 @@
+package com.panzainterpreter.panza;
+
+/**
+ * The runtime representation of a function in the VM, pairing the compiled function with the variables it captured.
+ */
+public class VmClosure {
+    final VmFunction function;
+    final VmUpvalue[] upvalues;
+
+    VmClosure(VmFunction function) {
+        this.function = function;
+        this.upvalues = new VmUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package com.panzainterpreter.panza;
+
+/**
+ * A function compiled to bytecode. The top level script is compiled into a function with no name.
+ */
+public class VmFunction {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+
+    VmFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<function " + name + ">";
+    }
+}
@@ -0,0 +1,38 @@
+package com.panzainterpreter.panza;
+
+import java.util.Arrays;
+
+/**
+ * An instance of a VmClass. Its fields are laid out by a Shape, in the same way as a PanzaInstance.
+ */
+public class VmInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final VmClass klass;
+    Shape shape;
+    Object[] fields;
+
+    VmInstance(VmClass klass) {
+        this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = klass.instanceSize == 0 ? NO_FIELDS : new Object[klass.instanceSize];
+    }
+
+    void set(Symbol name, Object value) {
+        int index = shape.indexOf(name);
+        if (index == -1) {
+            shape = shape.withField(name);
+            index = shape.size - 1;
+            if (index >= fields.length) {
+                fields = Arrays.copyOf(fields, shape.size);
+            }
+            if (shape.size > klass.instanceSize) klass.instanceSize = shape.size;
+        }
+        fields[index] = value;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + "instance";
+    }
+}
@@ -0,0 +1,23 @@
+package com.panzainterpreter.panza;
+
+/**
+ * A function implemented in Java that can be called from bytecode.
+ */
+public class VmNative {
+    interface Body {
+        Object call(Object[] arguments);
+    }
+
+    final int arity;
+    final Body body;
+
+    VmNative(int arity, Body body) {
+        this.arity = arity;
+        this.body = body;
+    }
+
+    @Override
+    public String toString() {
+        return "<native function>";
+    }
+}
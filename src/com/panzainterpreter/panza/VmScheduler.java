@@ -0,0 +1,69 @@
+package com.panzainterpreter.panza;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs several scripts on the VM on one thread, taking turns. Each script has a VM of its own, so they don't share
+ * globals, and each turn resumes one script for a slice of backward jumps and calls before moving on to the next,
+ * until every script has finished. A script that stops with a runtime error just drops out of the rotation.
+ *
+ * With tracing on, every time a script is paused its calls in progress and the slots of the innermost one are
+ * reported on stderr.
+ */
+public class VmScheduler {
+    private final long slice;
+    private final boolean trace;
+    private final List<String> names = new ArrayList<>();
+    private final List<VM> vms = new ArrayList<>();
+
+    /**
+     * @param slice The number of backward jumps and calls each script runs for in a turn, at least 1
+     * @param trace Whether to report the state of each script when it is paused
+     */
+    VmScheduler(long slice, boolean trace) {
+        this.slice = slice;
+        this.trace = trace;
+    }
+
+    /**
+     * Adds a script to the rotation.
+     * @param name The name to report the script by
+     * @param script
+     */
+    void add(String name, VmFunction script) {
+        VM vm = new VM();
+        vm.start(script);
+        names.add(name);
+        vms.add(vm);
+    }
+
+    void run() {
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (int i = 0; i < vms.size(); i++) {
+                VM vm = vms.get(i);
+                if (vm.isFinished()) continue;
+
+                if (!vm.resume(slice)) {
+                    running = true;
+                    if (trace) report(names.get(i), vm);
+                }
+            }
+        }
+    }
+
+    private static void report(String name, VM vm) {
+        System.err.println("[slice] Paused " + name + ":");
+        for (String call : vm.stackTrace()) {
+            System.err.println("  " + call);
+        }
+
+        StringBuilder slots = new StringBuilder("  slots:");
+        for (Object value : vm.frameSlots(0)) {
+            slots.append(' ').append(Interpreter.stringify(value));
+        }
+        System.err.println(slots);
+    }
+}
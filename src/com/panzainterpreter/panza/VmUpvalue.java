@@ -0,0 +1,17 @@
+package com.panzainterpreter.panza;
+
+/**
+ * A variable captured by a closure. While the variable is still alive on the VM stack the upvalue is open and points
+ * at its stack slot. Once the variable goes out of scope the value is moved into the upvalue and it becomes closed.
+ */
+public class VmUpvalue {
+    final int slot;
+    boolean open = true;
+    Object closed;
+    VmUpvalue next;
+
+    VmUpvalue(int slot, VmUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
@@ -12,31 +12,34 @@ public class GenerateAst {
             System.exit(1);
         }
         String outputDir = args[0];
+
+        // Fields after a second ':' are not set by the parser. They are left mutable so later passes such as the
+        // Resolver can record what they work out about the node on the node itself.
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
+                "Assign   : Token name, Expr value : int depth = -1, int slot, boolean boxed = false",
+                "Binary   : Expr left, Token operator, Expr right : Specialization specialization = Specialization.UNINITIALIZED",
                 "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
+                "Get      : Expr object, Token name : InlineCache cache = new InlineCache()",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
                 "Logical  : Expr left, Token operator, Expr right",
-                "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
+                "Set      : Expr object, Token name, Expr value : InlineCache cache = new InlineCache()",
+                "Super    : Token keyword, Token method : int depth = -1, int slot, int thisDepth, int thisSlot",
+                "This     : Token keyword : int depth = -1, int slot",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name : int depth = -1, int slot, boolean boxed = false, Stmt.Var declaration = null"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
                 "Block      : List<Stmt> statements",
-                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods : int slot = -1, boolean boxed = false, int superSlot",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : Token name, List<Token> params, List<Stmt> body : int slot = -1, boolean boxed = false, int frameSize = 0, int[] captures, int[] boxedParams, boolean used = false, boolean assigned = false, ClosureCompiler.Expression compiled = null, JitCompiler.Compiled jitted = null, int tier = 0, boolean settled = false, int calls = 0",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
-                "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "Return     : Token keyword, Expr value : boolean tailCall = false",
+                "Var        : Token name, Expr initializer : int slot = -1, boolean boxed = false, boolean assigned = false, boolean used = false, boolean captured = false",
+                "While      : Expr condition, Stmt body : boolean counted = false, int counterSlot, double step, Stmt.Function function = null, int backEdges = 0, ClosureCompiler.Expression osr = null, int osrTier = 0"
         ));
     }
 
@@ -46,7 +49,7 @@ public class GenerateAst {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
 
-        writer.println("package com.craftinginterpreters.panza;");
+        writer.println("package com.panzainterpreter.panza;");
         writer.println();
         writer.println("import java.util.List;");
         writer.println();
@@ -56,9 +59,11 @@ public class GenerateAst {
 
         // The AST classes.
         for (String type : types) {
-            String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] parts = type.split(":");
+            String className = parts[0].trim();
+            String fields = parts[1].trim();
+            String mutableFields = parts.length > 2 ? parts[2].trim() : "";
+            defineType(writer, baseName, className, fields, mutableFields);
         }
 
         // The base accept() method.
@@ -82,7 +87,8 @@ public class GenerateAst {
         writer.println("  }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+                                   String mutableFieldList) {
 
         writer.println("/**\n* This class defines the " + className + " expression.\n**/");
         writer.println("  static class " + className + " extends " +
@@ -112,6 +118,12 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("    final " + field + ";");
         }
+        if (!mutableFieldList.isEmpty()) {
+            writer.println();
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
 
         writer.println("  }\n");
     }